@@ -124,19 +124,25 @@ public class Station {
     public synchronized void setPredictions(List<StationPrediction> predictions, boolean clearExisting) {
         Calendar yesterday = Calendar.getInstance();
         yesterday.add(Calendar.DATE, -1);
+        long yesterdayMillis = yesterday.getTimeInMillis();
         if (clearExisting) {
         	_predictions.clear();
         }
+        // Las fechas se comparan en ms, para no crear un Calendar por predicción
+        StationPrediction lastCreated = null;
         for (StationPrediction prediction: predictions) {
-        	Calendar creationDate = prediction.getCreationDate();
-            if (_lastCreationDate == null || (creationDate != null && creationDate.after(_lastCreationDate))) {
-                _lastCreationDate = creationDate;
+        	long creationDate = prediction.getCreationDateMillis();
+            if (creationDate != StationPrediction.UNKNOWN_DATE && (lastCreated == null || creationDate > lastCreated.getCreationDateMillis())) {
+                lastCreated = prediction;
             }
-            Calendar predictionDate = prediction.getDate(); 
-            if (predictionDate != null && predictionDate.after(yesterday)) {
+            long predictionDate = prediction.getDateMillis();
+            if (predictionDate != StationPrediction.UNKNOWN_DATE && predictionDate > yesterdayMillis) {
                 _predictions.add(prediction);
             }
         }
+        if (lastCreated != null && (_lastCreationDate == null || lastCreated.getCreationDateMillis() > _lastCreationDate.getTimeInMillis())) {
+            _lastCreationDate = lastCreated.getCreationDate();
+        }
     }
 
     /**
@@ -19,6 +19,7 @@
 package org.otempo.model;
 
 import java.util.Calendar;
+import java.util.GregorianCalendar;
 
 import androidx.annotation.Nullable;
 import org.otempo.R;
@@ -29,36 +30,71 @@ import android.content.Context;
  * Predicción de una estación. Es una clase abstracta porque tenemos dos tipos de predicciones (corto/medio plazo) implementadas por subclases.
  */
 public abstract class StationPrediction {
+    /// Fecha desconocida (no venía en el RSS, o no se pudo leer)
+    public static final long UNKNOWN_DATE = Long.MIN_VALUE;
+
     /**
      * @return La fecha para la que se aplica la predicción
      */
     public @Nullable Calendar getDate() {
+        Calendar date = _dateCalendar;
+        if (date == null && _date != UNKNOWN_DATE) {
+            date = toCalendar(_date);
+            _dateCalendar = date;
+        }
+        return date;
+    }
+
+    /**
+     * @return La fecha para la que se aplica la predicción (en ms), o UNKNOWN_DATE
+     */
+    public long getDateMillis() {
         return _date;
     }
 
     /**
      * Establece la fecha para la que se aplica la predicción
-     * @param date la fecha para la que se aplica la predicción
+     * @param date la fecha para la que se aplica la predicción (en ms), o UNKNOWN_DATE
      */
-    public void setDate(@Nullable Calendar date) {
+    public void setDate(long date) {
         _date = date;
+        _dateCalendar = null;
     }
 
     /**
      * Establece la fecha en que se realizó la predicción
-     * @param creationDate La fecha en que se realizó la predicción
+     * @param creationDate La fecha en que se realizó la predicción (en ms), o UNKNOWN_DATE
      */
-    public void setCreationDate(@Nullable Calendar creationDate) {
+    public void setCreationDate(long creationDate) {
         _creationDate = creationDate;
+        _creationCalendar = null;
     }
 
     /**
      * @return La fecha en que se realizó la predicción
      */
     public @Nullable Calendar getCreationDate() {
+        Calendar creationDate = _creationCalendar;
+        if (creationDate == null && _creationDate != UNKNOWN_DATE) {
+            creationDate = toCalendar(_creationDate);
+            _creationCalendar = creationDate;
+        }
+        return creationDate;
+    }
+
+    /**
+     * @return La fecha en que se realizó la predicción (en ms), o UNKNOWN_DATE
+     */
+    public long getCreationDateMillis() {
         return _creationDate;
     }
 
+    private static Calendar toCalendar(long millis) {
+        Calendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(millis);
+        return calendar;
+    }
+
     public void setMaxTemp(int maxTemp) { _maxTemp = maxTemp; }
     public int getMaxTemp() { return _maxTemp; }
     public int getMinTemp() { return _minTemp; }
@@ -212,8 +248,11 @@ public abstract class StationPrediction {
     }
  
     
-    @Nullable private Calendar _date = null;
-    @Nullable private Calendar _creationDate = null;
+    private long _date = UNKNOWN_DATE; ///< Fecha para la que se aplica la predicción (en ms)
+    private long _creationDate = UNKNOWN_DATE; ///< Fecha en que se realizó la predicción (en ms)
+    /// Las mismas fechas como Calendar, que se crean al pedirlas (al parsear no hacen falta)
+    @Nullable private Calendar _dateCalendar = null;
+    @Nullable private Calendar _creationCalendar = null;
 	private int _maxTemp = 0; ///< Temperatura máxima del día
 	private int _minTemp = 0; ///< Temperatura mínima del día
 }
\ No newline at end of file
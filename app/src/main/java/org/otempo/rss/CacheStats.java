@@ -0,0 +1,85 @@
+package org.otempo.rss;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contadores de uso de la caché de RSS desde que arrancó el proceso, para poder ajustar su tamaño
+ * según la tasa de aciertos real en lugar de a ojo.
+ */
+public class CacheStats {
+    /**
+     * @return Lecturas servidas con una copia fresca, sin ir a la red
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * @return Lecturas servidas con una copia caducada (sin conexión, RSS que viene fallando, etc)
+     */
+    public long getStaleHits() {
+        return _staleHits.get();
+    }
+
+    /**
+     * @return Lecturas en las que el servidor confirmó que la copia seguía valiendo (304), sin bajar el RSS
+     */
+    public long getRevalidations() {
+        return _revalidations.get();
+    }
+
+    /**
+     * @return Lecturas que tuvieron que descargar el RSS, o para las que no había copia
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * @return Copias desalojadas para no pasar del tamaño máximo
+     */
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    /**
+     * @return Proporción de lecturas servidas desde la caché (frescas, caducadas o revalidadas), entre 0 y 1
+     */
+    public double getHitRate() {
+        long hits = getHits() + getStaleHits() + getRevalidations();
+        long total = hits + getMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + getHits() + " stale=" + getStaleHits() + " revalidated=" + getRevalidations()
+                + " misses=" + getMisses() + " evictions=" + getEvictions();
+    }
+
+    void recordHit() {
+        _hits.incrementAndGet();
+    }
+
+    void recordStaleHit() {
+        _staleHits.incrementAndGet();
+    }
+
+    void recordRevalidation() {
+        _revalidations.incrementAndGet();
+    }
+
+    void recordMiss() {
+        _misses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        _evictions.incrementAndGet();
+    }
+
+    private final AtomicLong _hits = new AtomicLong(); ///< Lecturas con copia fresca
+    private final AtomicLong _staleHits = new AtomicLong(); ///< Lecturas con copia caducada
+    private final AtomicLong _revalidations = new AtomicLong(); ///< Lecturas con copia confirmada por un 304
+    private final AtomicLong _misses = new AtomicLong(); ///< Lecturas que descargaron el RSS o sin copia
+    private final AtomicLong _evictions = new AtomicLong(); ///< Copias desalojadas
+}
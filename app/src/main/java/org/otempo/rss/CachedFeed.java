@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010-2011 Ruben Lopez
+ *
+ * This file is part of OTempo - Galician Weather
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otempo.rss;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import androidx.annotation.Nullable;
+
+/**
+ * RSS de una estación tal como lo entrega la caché: el flujo del que leerlo y si su contenido
+ * sigue siendo el mismo que ya se había parseado antes.
+ */
+public class CachedFeed {
+    /**
+     * @param stream Flujo del que leer el RSS
+     * @param unchanged true si el servidor confirmó que la copia local sigue vigente
+     */
+    CachedFeed(InputStream stream, boolean unchanged) {
+        _stream = stream;
+        _unchanged = unchanged;
+        _download = null;
+    }
+
+    /**
+     * @param download RSS que se está descargando, y que se guarda en la caché a medida que se lee
+     */
+    CachedFeed(FeedDownload download) {
+        _stream = download;
+        _unchanged = false;
+        _download = download;
+    }
+
+    /**
+     * @return Flujo del que leer el RSS
+     */
+    public InputStream getStream() {
+        return _stream;
+    }
+
+    /**
+     * @return true si el contenido no ha cambiado desde la última descarga (el servidor respondió 304)
+     */
+    public boolean isUnchanged() {
+        return _unchanged;
+    }
+
+    /**
+     * @return true si el RSS se está descargando (y por tanto hay que informar a la caché de si se pudo parsear)
+     */
+    public boolean isDownloaded() {
+        return _download != null;
+    }
+
+    /**
+     * @return La descarga en curso, o null si el RSS viene de la SD
+     */
+    @Nullable
+    FeedDownload getDownload() {
+        return _download;
+    }
+
+    /**
+     * Cierra el flujo, ignorando errores. Si es una descarga que no se llegó a confirmar, se descarta.
+     */
+    public void close() {
+        if (_download != null) {
+            _download.abort();
+            return;
+        }
+        try {
+            _stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private final InputStream _stream; ///< Flujo del que leer el RSS
+    private final boolean _unchanged; ///< El servidor confirmó que la copia local sigue vigente
+    @Nullable
+    private final FeedDownload _download; ///< Descarga en curso, si el RSS viene de Internet
+}
@@ -0,0 +1,89 @@
+package org.otempo.rss;
+
+import java.util.Date;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Cortacircuitos para las peticiones a meteogalicia. Tras varios fallos seguidos deja de
+ * intentarlo durante un tiempo (abierto), y pasado ese tiempo deja pasar una única petición de
+ * prueba: si sale bien se vuelve a la normalidad, y si falla se espera otro periodo completo.
+ */
+public class CircuitBreaker {
+    /**
+     * @param failureThreshold Fallos seguidos que abren el circuito
+     * @param coolDown         Tiempo que permanece abierto antes de volver a probar (en ms)
+     */
+    CircuitBreaker(int failureThreshold, long coolDown) {
+        _failureThreshold = failureThreshold;
+        _coolDown = coolDown;
+    }
+
+    /**
+     * @return true si se puede intentar una petición ahora mismo
+     */
+    synchronized boolean allowRequest() {
+        if (_openedAt < 0) {
+            return true;
+        }
+        long now = new Date().getTime();
+        if (_probe == null && now - _openedAt >= _coolDown) {
+            // Sólo una petición de prueba a la vez
+            _probe = Thread.currentThread();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Termina la petición de prueba de este hilo si no llegó a informar de su resultado (por ej.
+     * porque se produjo una excepción inesperada), para que se pueda volver a probar. Si el hilo no
+     * estaba probando no hace nada, así que se puede llamar siempre al acabar una petición.
+     */
+    synchronized void releaseProbe() {
+        if (_probe == Thread.currentThread()) {
+            _probe = null;
+        }
+    }
+
+    /**
+     * Informa de que una petición ha salido bien (el servidor responde)
+     */
+    synchronized void recordSuccess() {
+        _failures = 0;
+        _openedAt = -1;
+        _probe = null;
+    }
+
+    /**
+     * Informa de que una petición ha fallado, aun después de los reintentos
+     */
+    synchronized void recordFailure() {
+        _failures++;
+        if (_probe != null || _failures >= _failureThreshold) {
+            _openedAt = new Date().getTime();
+        }
+        _probe = null;
+    }
+
+    /**
+     * @return true si el circuito está abierto, y por tanto las peticiones se sirven desde la SD
+     */
+    public synchronized boolean isOpen() {
+        return _openedAt >= 0 && (_probe != null || new Date().getTime() - _openedAt < _coolDown);
+    }
+
+    /**
+     * @return Fallos seguidos registrados hasta ahora
+     */
+    public synchronized int getConsecutiveFailures() {
+        return _failures;
+    }
+
+    private final int _failureThreshold; ///< Fallos seguidos que abren el circuito
+    private final long _coolDown; ///< Tiempo que permanece abierto antes de volver a probar (en ms)
+    private int _failures = 0; ///< Fallos seguidos
+    private long _openedAt = -1; ///< Momento en que se abrió el circuito, o -1 si está cerrado
+    @Nullable
+    private Thread _probe = null; ///< Hilo que está haciendo la petición de prueba, o null si no hay ninguna
+}
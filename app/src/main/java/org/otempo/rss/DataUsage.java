@@ -0,0 +1,202 @@
+package org.otempo.rss;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Cuenta los bytes que se descargan de meteogalicia: por RSS, por estación, por tipo de red y por
+ * periodo (el día y el mes en curso), para poder mostrarlo al usuario y para que las actualizaciones
+ * en segundo plano respeten un límite de datos.
+ * Se guarda en un fichero para que sobreviva entre ejecuciones de los workers.
+ */
+public class DataUsage {
+    /// Estimación de lo que cuesta descargar un RSS del que todavía no se sabe nada (en bytes)
+    private static final long DEFAULT_FEED_COST = 10 * 1024;
+
+    public static final String NETWORK_WIFI = "wifi"; ///< Red wifi (o ethernet)
+    public static final String NETWORK_MOBILE = "mobile"; ///< Datos móviles
+    public static final String NETWORK_OTHER = "other"; ///< Otra red, o no se sabe
+
+    private static final String KEY_FEED = "feed."; ///< Prefijo de los contadores por RSS
+    private static final String KEY_LAST_FEED = "lastFeed."; ///< Prefijo del tamaño de la última descarga de cada RSS
+    private static final String KEY_STATION = "station."; ///< Prefijo de los contadores por estación
+    private static final String KEY_NETWORK = "network."; ///< Prefijo de los contadores por tipo de red
+    private static final String KEY_TOTAL = "total"; ///< Contador total
+    private static final String KEY_DAY = "day"; ///< Día al que corresponde el contador diario (aaaammdd)
+    private static final String KEY_DAY_BYTES = "dayBytes"; ///< Contador del día en curso
+    private static final String KEY_MONTH = "month"; ///< Mes al que corresponde el contador mensual (aaaamm)
+    private static final String KEY_MONTH_BYTES = "monthBytes"; ///< Contador del mes en curso
+
+    /**
+     * @param file Fichero en el que se guardan los contadores
+     */
+    DataUsage(File file) {
+        _file = file;
+        load();
+    }
+
+    /**
+     * Apunta lo descargado para un RSS
+     *
+     * @param network Tipo de red (NETWORK_*)
+     */
+    synchronized void recordFeed(int stationId, boolean shortTerm, long bytes, String network) {
+        String feed = makeKey(stationId, shortTerm);
+        add(KEY_FEED + feed, bytes);
+        _counters.setProperty(KEY_LAST_FEED + feed, String.valueOf(bytes));
+        add(KEY_STATION + stationId, bytes);
+        recordTotal(bytes, network);
+    }
+
+    /**
+     * Apunta lo descargado sin poder repartirlo por RSS (un lote, por ej)
+     *
+     * @param network Tipo de red (NETWORK_*)
+     */
+    synchronized void recordOther(long bytes, String network) {
+        recordTotal(bytes, network);
+    }
+
+    /**
+     * @return Bytes descargados hoy
+     */
+    public synchronized long getToday() {
+        rollPeriods();
+        return get(KEY_DAY_BYTES);
+    }
+
+    /**
+     * @return Bytes descargados este mes
+     */
+    public synchronized long getThisMonth() {
+        rollPeriods();
+        return get(KEY_MONTH_BYTES);
+    }
+
+    /**
+     * @return Bytes descargados en total
+     */
+    public synchronized long getTotal() {
+        return get(KEY_TOTAL);
+    }
+
+    /**
+     * @param network Tipo de red (NETWORK_*)
+     * @return Bytes descargados en total por ese tipo de red
+     */
+    public synchronized long getByNetwork(String network) {
+        return get(KEY_NETWORK + network);
+    }
+
+    /**
+     * @return Bytes descargados en total para una estación
+     */
+    public synchronized long getByStation(int stationId) {
+        return get(KEY_STATION + stationId);
+    }
+
+    /**
+     * @return Bytes descargados en total para uno de los RSS de una estación
+     */
+    public synchronized long getByFeed(int stationId, boolean shortTerm) {
+        return get(KEY_FEED + makeKey(stationId, shortTerm));
+    }
+
+    /**
+     * @return Lo que se espera que cueste descargar uno de los RSS de una estación, según lo que ocupó la última vez
+     */
+    public synchronized long estimateFeedCost(int stationId, boolean shortTerm) {
+        String key = KEY_LAST_FEED + makeKey(stationId, shortTerm);
+        return _counters.getProperty(key) != null ? get(key) : DEFAULT_FEED_COST;
+    }
+
+    private void recordTotal(long bytes, String network) {
+        rollPeriods();
+        add(KEY_NETWORK + network, bytes);
+        add(KEY_TOTAL, bytes);
+        add(KEY_DAY_BYTES, bytes);
+        add(KEY_MONTH_BYTES, bytes);
+        save();
+    }
+
+    /**
+     * Pone a cero los contadores del día y del mes si han cambiado
+     */
+    private void rollPeriods() {
+        Calendar now = Calendar.getInstance();
+        String day = String.format(Locale.US, "%04d%02d%02d", now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH));
+        String month = day.substring(0, 6);
+        if (!day.equals(_counters.getProperty(KEY_DAY))) {
+            _counters.setProperty(KEY_DAY, day);
+            _counters.setProperty(KEY_DAY_BYTES, "0");
+        }
+        if (!month.equals(_counters.getProperty(KEY_MONTH))) {
+            _counters.setProperty(KEY_MONTH, month);
+            _counters.setProperty(KEY_MONTH_BYTES, "0");
+        }
+    }
+
+    private long get(String key) {
+        try {
+            return Long.parseLong(_counters.getProperty(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void add(String key, long bytes) {
+        _counters.setProperty(key, String.valueOf(get(key) + bytes));
+    }
+
+    private static String makeKey(int stationId, boolean shortTerm) {
+        return String.format(Locale.US, "%d_%s", stationId, shortTerm ? "short" : "medium");
+    }
+
+    /**
+     * Lee los contadores desde el fichero
+     */
+    private void load() {
+        if (!_file.exists()) {
+            return;
+        }
+        try {
+            InputStream stream = new FileInputStream(_file);
+            try {
+                _counters.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to read data usage " + _file, e);
+        }
+    }
+
+    /**
+     * Guarda los contadores en el fichero
+     */
+    private void save() {
+        try {
+            _file.getParentFile().mkdirs();
+            OutputStream stream = new FileOutputStream(_file);
+            try {
+                _counters.store(stream, null);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to write data usage " + _file, e);
+        }
+    }
+
+    private final File _file; ///< Fichero en el que se guardan los contadores
+    private final Properties _counters = new Properties(); ///< Contadores
+}
@@ -0,0 +1,145 @@
+package org.otempo.rss;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión de las copias de los RSS con un diccionario predefinido (FeedDictionary). Todos los
+ * RSS de meteogalicia repiten el mismo esqueleto XML, así que con el diccionario hasta la primera
+ * etiqueta de cada copia sale barata, y cada copia ocupa bastante menos que con gzip.
+ * El formato es zlib: la cabecera lleva el identificador (Adler-32) del diccionario usado, de modo
+ * que una copia guardada con otro diccionario se detecta y se descarta en lugar de leer basura.
+ */
+class DictionaryCodec {
+    /// El diccionario, tal como lo usa deflate
+    private static final byte[] DICTIONARY;
+    /// Identificador del diccionario (su Adler-32)
+    private static final int DICTIONARY_ID;
+
+    static {
+        try {
+            DICTIONARY = FeedDictionary.TEXT.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        Adler32 adler = new Adler32();
+        adler.update(DICTIONARY, 0, DICTIONARY.length);
+        DICTIONARY_ID = (int) adler.getValue();
+    }
+
+    /**
+     * @param out Donde escribir la copia comprimida
+     * @return Un flujo en el que escribir el RSS sin comprimir
+     */
+    static OutputStream compress(OutputStream out) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setDictionary(DICTIONARY);
+        return new DeflaterOutputStream(out, deflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Con un Deflater propio, DeflaterOutputStream no libera la memoria nativa
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param in Flujo con la copia comprimida
+     * @return Un flujo del que leer el RSS sin comprimir
+     */
+    static InputStream decompress(InputStream in) {
+        return new DictionaryInflaterInputStream(in);
+    }
+
+    /**
+     * Descompresión que pone el diccionario cuando lo pide la copia. InflaterInputStream no sirve:
+     * en cuanto el Inflater pide diccionario da el flujo por terminado.
+     */
+    private static class DictionaryInflaterInputStream extends FilterInputStream {
+        DictionaryInflaterInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int n = _inflater.inflate(buffer, offset, length);
+                    if (n > 0) {
+                        return n;
+                    } else if (_inflater.finished()) {
+                        return -1;
+                    } else if (_inflater.needsDictionary()) {
+                        if (_inflater.getAdler() != DICTIONARY_ID) {
+                            throw new IOException("Feed compressed with an unknown dictionary");
+                        }
+                        _inflater.setDictionary(DICTIONARY);
+                    } else if (_inflater.needsInput()) {
+                        int read = in.read(_input, 0, _input.length);
+                        if (read == -1) {
+                            throw new EOFException("Unexpected end of compressed feed");
+                        }
+                        _inflater.setInput(_input, 0, read);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return _inflater.finished() ? 0 : 1;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _inflater.end();
+            super.close();
+        }
+
+        private final Inflater _inflater = new Inflater(); ///< Descompresor
+        private final byte[] _input = new byte[4096]; ///< Datos comprimidos pendientes
+    }
+}
@@ -0,0 +1,140 @@
+package org.otempo.rss;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Protocolo para pedir los RSS de muchas estaciones en una sola petición a un proxy que los agrupa
+ * (ver tools/BatchProxy.java), en lugar de hacer dos peticiones por estación.
+ *
+ * La petición nombra los RSS que se quieren, cada uno con el hash de la copia que ya tenemos si la hay:
+ *
+ *   GET proxy?feeds=10s:1a2b3c4d,10m,20s
+ *
+ * La respuesta es una línea de cabecera (MAGIC) seguida, por cada RSS, de una línea con la estación,
+ * el tipo, el estado (como en HTTP), el tamaño y opcionalmente el ETag, y a continuación el RSS tal
+ * cual (sólo si el estado es 200; con 304 el RSS coincide con el hash enviado):
+ *
+ *   OTBATCH 1
+ *   10 s 200 5321 "abc"
+ *   ...5321 bytes...
+ *   10 m 304 0
+ *   20 s 502 0
+ */
+class FeedBatch {
+    static final String MAGIC = "OTBATCH 1"; ///< Primera línea de la respuesta
+    private static final int MAX_LINE = 1024; ///< Ninguna línea de cabecera debería ser más larga
+    private static final int MAX_FEED_SIZE = 1024 * 1024; ///< Ni ningún RSS mayor
+
+    /**
+     * Uno de los RSS de la respuesta
+     */
+    static class Item {
+        Item(int stationId, boolean shortTerm, int status, @Nullable String etag, @Nullable byte[] body) {
+            this.stationId = stationId;
+            this.shortTerm = shortTerm;
+            this.status = status;
+            this.etag = etag;
+            this.body = body;
+        }
+
+        final int stationId; ///< ID de la estación
+        final boolean shortTerm; ///< RSS a corto o a medio plazo
+        final int status; ///< 200 (viene el RSS), 304 (no ha cambiado) u otro (el proxy no lo pudo obtener)
+        @Nullable
+        final String etag; ///< ETag del RSS, si el proxy lo conoce
+        @Nullable
+        final byte[] body; ///< El RSS, sólo con estado 200
+    }
+
+    /**
+     * Parte de la consulta que pide un RSS
+     *
+     * @param hash Hash de la copia que ya tenemos, o null si no hay
+     */
+    static String makeQueryItem(int stationId, boolean shortTerm, @Nullable Integer hash) {
+        String item = stationId + (shortTerm ? "s" : "m");
+        if (hash != null) {
+            item += ":" + String.format(Locale.US, "%08x", hash);
+        }
+        return item;
+    }
+
+    /**
+     * Lee una respuesta entera
+     */
+    static List<Item> read(InputStream in) throws IOException {
+        String magic = readLine(in);
+        if (!MAGIC.equals(magic)) {
+            throw new IOException("Not a feed batch: " + magic);
+        }
+        List<Item> items = new ArrayList<>();
+        String line;
+        while ((line = readLine(in)) != null) {
+            String[] fields = line.split(" ", 5);
+            if (fields.length < 4 || !(fields[1].equals("s") || fields[1].equals("m"))) {
+                throw new IOException("Bad feed batch line: " + line);
+            }
+            int stationId;
+            int status;
+            int length;
+            try {
+                stationId = Integer.parseInt(fields[0]);
+                status = Integer.parseInt(fields[2]);
+                length = Integer.parseInt(fields[3]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad feed batch line: " + line);
+            }
+            if (length < 0 || length > MAX_FEED_SIZE) {
+                throw new IOException("Bad feed size in batch: " + length);
+            }
+            byte[] body = new byte[length];
+            readFully(in, body);
+            items.add(new Item(stationId, fields[1].equals("s"), status, fields.length > 4 ? fields[4] : null,
+                    status == 200 ? body : null));
+        }
+        return items;
+    }
+
+    /**
+     * @return Una línea (ASCII, sin el salto de línea), o null si ya no quedan
+     */
+    @Nullable
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (line.length() == 0) {
+                    return null;
+                }
+                throw new EOFException("Truncated feed batch");
+            }
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("Feed batch line too long");
+            }
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n == -1) {
+                throw new EOFException("Truncated feed batch");
+            }
+            read += n;
+        }
+    }
+
+    private FeedBatch() {
+    }
+}
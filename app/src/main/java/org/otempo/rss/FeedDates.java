@@ -0,0 +1,232 @@
+package org.otempo.rss;
+
+import org.otempo.model.StationPrediction;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decodifica las fechas del RSS de meteogalicia a milisegundos desde epoch, en la zona horaria del
+ * dispositivo (como hacía SimpleDateFormat).
+ *
+ * Los formatos (el fijo de dataCreacion y el que declara cada dataPredicion en su atributo formato)
+ * se compilan una sola vez y se comparten entre hilos. Los formatos sólo numéricos, que son los que
+ * usa meteogalicia, se decodifican directamente del texto; para el resto, o si el texto no encaja,
+ * se usa un SimpleDateFormat de cada hilo, así que el resultado es siempre el mismo que antes.
+ */
+final class FeedDates {
+    /// Formato de fecha de creación (no se especifica en el RSS)
+    static final String CREATION_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+    private static final Locale SPANISH = new Locale("es");
+
+    /// Formatos ya compilados, por patrón
+    private static final Map<String, CompiledFormat> _formats = new ConcurrentHashMap<>();
+    /// Calendario de cada hilo para pasar de campos a milisegundos
+    private static final ThreadLocal<Calendar> _calendar = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            return new GregorianCalendar();
+        }
+    };
+    /// SimpleDateFormat de cada hilo, por patrón, para los formatos que no se decodifican directamente
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> _fallbackFormats = new ThreadLocal<Map<String, SimpleDateFormat>>() {
+        @Override
+        protected Map<String, SimpleDateFormat> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * @param text    Fecha como texto
+     * @param pattern Formato de fecha esperado (como en SimpleDateFormat), o null si no se conoce
+     * @return La fecha en milisegundos, o StationPrediction.UNKNOWN_DATE si no se puede decodificar
+     */
+    static long parse(CharSequence text, @Nullable String pattern) {
+        if (pattern == null) {
+            return StationPrediction.UNKNOWN_DATE;
+        }
+        CompiledFormat format = _formats.get(pattern);
+        if (format == null) {
+            format = CompiledFormat.compile(pattern);
+            _formats.put(pattern, format);
+        }
+        // Los calendarios y formatos de cada hilo duran más que un RSS, así que hay que seguir los
+        // cambios de zona horaria del dispositivo, como hacía el SimpleDateFormat de cada RSS
+        TimeZone zone = TimeZone.getDefault();
+        if (format.isNumeric()) {
+            Calendar calendar = _calendar.get();
+            if (!calendar.getTimeZone().getID().equals(zone.getID())) {
+                calendar.setTimeZone(zone);
+            }
+            if (format.parse(text, calendar)) {
+                return calendar.getTimeInMillis();
+            }
+        }
+        return parseWithSimpleDateFormat(text.toString(), pattern, zone);
+    }
+
+    /**
+     * La fecha de creación acaba en una 'Z' (UTC), pero se decodifica como hora local, igual que se
+     * ha mostrado siempre. Para saber cuándo se publicó de verdad hay que deshacer la zona horaria.
+     *
+     * @param created Fecha de creación decodificada con CREATION_DATE_FORMAT
+     * @return El instante que indica la fecha de creación, en milisegundos
+     */
+    static long creationDateToUtc(long created) {
+        return created + TimeZone.getDefault().getOffset(created);
+    }
+
+    private static long parseWithSimpleDateFormat(String text, String pattern, TimeZone zone) {
+        try {
+            Map<String, SimpleDateFormat> formats = _fallbackFormats.get();
+            SimpleDateFormat format = formats.get(pattern);
+            if (format == null) {
+                format = new SimpleDateFormat(pattern, SPANISH);
+                formats.put(pattern, format);
+            }
+            if (!format.getTimeZone().getID().equals(zone.getID())) {
+                format.setTimeZone(zone);
+            }
+            return format.parse(text).getTime();
+        } catch (ParseException | RuntimeException e) {
+            // Un formato no válido también se trata como fecha desconocida
+            return StationPrediction.UNKNOWN_DATE;
+        }
+    }
+
+    /**
+     * Un patrón de SimpleDateFormat traducido a una lista de campos numéricos y literales
+     */
+    private static class CompiledFormat {
+        private static final int LITERAL = -1; ///< Elemento que es un carácter literal
+
+        /**
+         * @return El formato compilado; si tiene algo que no sea numérico (nombres de mes, zona
+         * horaria, años de dos cifras...) se marca como no numérico
+         */
+        static CompiledFormat compile(String pattern) {
+            List<int[]> elements = new ArrayList<>();
+            boolean numeric = true;
+            int i = 0;
+            while (i < pattern.length()) {
+                char c = pattern.charAt(i);
+                if (c == '\'') {
+                    // Literal entre comillas ('' es una comilla)
+                    int end = i + 1;
+                    if (end < pattern.length() && pattern.charAt(end) == '\'') {
+                        elements.add(new int[]{LITERAL, '\''});
+                        i = end + 1;
+                        continue;
+                    }
+                    while (end < pattern.length() && pattern.charAt(end) != '\'') {
+                        elements.add(new int[]{LITERAL, pattern.charAt(end)});
+                        end++;
+                    }
+                    if (end == pattern.length()) {
+                        numeric = false;
+                    }
+                    i = end + 1;
+                } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                    int count = 1;
+                    while (i + count < pattern.length() && pattern.charAt(i + count) == c) {
+                        count++;
+                    }
+                    int field = toCalendarField(c);
+                    if (field < 0 || (c == 'y' && count <= 2) || (c == 'M' && count >= 3)) {
+                        numeric = false;
+                    }
+                    elements.add(new int[]{field, count});
+                    i += count;
+                } else {
+                    elements.add(new int[]{LITERAL, c});
+                    i++;
+                }
+            }
+            return new CompiledFormat(elements.toArray(new int[elements.size()][]), numeric);
+        }
+
+        /**
+         * @return El campo de Calendar de una letra del patrón, o -1 si no es numérico
+         */
+        private static int toCalendarField(char letter) {
+            switch (letter) {
+                case 'y': return Calendar.YEAR;
+                case 'M': return Calendar.MONTH;
+                case 'd': return Calendar.DAY_OF_MONTH;
+                case 'H': return Calendar.HOUR_OF_DAY;
+                case 'm': return Calendar.MINUTE;
+                case 's': return Calendar.SECOND;
+                default: return -1;
+            }
+        }
+
+        private CompiledFormat(int[][] elements, boolean numeric) {
+            _elements = elements;
+            _numeric = numeric;
+        }
+
+        boolean isNumeric() {
+            return _numeric;
+        }
+
+        /**
+         * Decodifica un texto con este formato, dejando el resultado en el calendario. Como
+         * SimpleDateFormat, un campo seguido de otro numérico ocupa exactamente su número de cifras,
+         * y si no, todas las cifras que haya; lo que sobre al final se ignora.
+         *
+         * @return true si el texto encaja con el formato
+         */
+        boolean parse(CharSequence text, Calendar calendar) {
+            calendar.clear();
+            int position = 0;
+            for (int e = 0; e < _elements.length; e++) {
+                int[] element = _elements[e];
+                if (element[0] == LITERAL) {
+                    if (position >= text.length() || text.charAt(position) != element[1]) {
+                        return false;
+                    }
+                    position++;
+                    continue;
+                }
+                boolean abutting = e + 1 < _elements.length && _elements[e + 1][0] != LITERAL;
+                int limit = abutting ? Math.min(text.length(), position + element[1]) : text.length();
+                int value = 0;
+                int start = position;
+                while (position < limit && position - start < 9) {
+                    int digit = text.charAt(position) - '0';
+                    if (digit < 0 || digit > 9) {
+                        break;
+                    }
+                    value = value * 10 + digit;
+                    position++;
+                }
+                if (position == start || (abutting && position - start != element[1])) {
+                    return false;
+                }
+                if (position < limit && Character.isDigit(text.charAt(position))) {
+                    // Demasiadas cifras para un int: que decida SimpleDateFormat
+                    return false;
+                }
+                calendar.set(element[0], element[0] == Calendar.MONTH ? value - 1 : value);
+            }
+            return true;
+        }
+
+        private final int[][] _elements; ///< Campos (campo de Calendar, cifras) y literales (LITERAL, carácter)
+        private final boolean _numeric; ///< Si se puede decodificar directamente
+    }
+
+    private FeedDates() {
+    }
+}
@@ -0,0 +1,79 @@
+package org.otempo.rss;
+
+/**
+ * Diccionario para comprimir las copias de los RSS (ver DictionaryCodec).
+ * Generado por tools/FeedDictionaryBuilder.java a partir de 40 RSS: no editar a mano.
+ */
+final class FeedDictionary {
+    static final String TEXT = ""
+            + "<Concellos:tMin>17<Concellos:vento>323<Concellos:vento>314<Concellos:vento>307<Concellos:v"
+            + "ento>300<Concellos:ventoT>319<Concellos:ventoT>317<Concellos:ventoT>316<Concellos:ventoT>3"
+            + "15<Concellos:ventoT>313<Concellos:ventoT>309<Concellos:ventoT>308<Concellos:ventoT>307<Con"
+            + "cellos:ventoT>304<Concellos:ventoT>302<Concellos:ventoN>328<Concellos:ventoN>327<Concellos"
+            + ":ventoN>316<Concellos:ventoN>308<Concellos:ventoM>311<Concellos:ventoM>304<Concellos:tMin>"
+            + "0<Concellos:pChoivaN>60<Concellos:tMin>-1<Concellos:ceoN>117<Concellos:ceoN>116<Concellos:"
+            + "vento>330<Concellos:vento>329<Concellos:vento>325<Concellos:vento>324<Concellos:vento>317<"
+            + "Concellos:vento>313<Concellos:vento>311<Concellos:vento>301<Concellos:tMin>3<Concellos:ven"
+            + "toN>313<Concellos:ventoM>319<Concellos:pChoivaT>80<Concellos:pChoivaM>80<Concellos:vento>3"
+            + "27<Concellos:vento>319<Concellos:vento>304<Concellos:vento>303<Concellos:vento>302<Concell"
+            + "os:ventoN>311<Concellos:ventoM>307<Concellos:tMin>16<Concellos:tMax>15<Concellos:tMax>12<C"
+            + "oncellos:pChoivaT>95<Concellos:pChoivaT>60<Concellos:vento>308<Concellos:vento>299<Concell"
+            + "os:tMax>10<Concellos:ventoM>312<Concellos:pChoivaN>5<Concellos:pChoivaN>0<Concellos:ceoT>1"
+            + "17<Concellos:ceoM>116<Concellos:ceoM>105<Concellos:tMin>4<Concellos:pChoivaT>10<Concellos:"
+            + "pChoivaM>60<Concellos:pChoivaM>40<Concellos:tMin>12<Concellos:tMax>21<Concellos:tMax>16<Co"
+            + "ncellos:pChoivaT>5<Concellos:pChoivaM>0<Concellos:tMin>8<Concellos:tMin>7<Concellos:tMin>5"
+            + "<Concellos:tMin>2<Concellos:ceoT>111<Concellos:ceoN>105<Concellos:ceoM>111<Concellos:pChoi"
+            + "vaN>95<Concellos:pChoivaN>80<Concellos:pChoivaN>20<Concellos:pChoivaM>95<Concellos:tMax>9<"
+            + "Concellos:pChoivaT>0<Concellos:ceoT>107<Concellos:ceoT>103<Concellos:ceoN>111<Concellos:ce"
+            + "oN>103<Concellos:ceoM>117<Concellos:ceoM>101<Concellos:tMin>15<Concellos:tMin>14<Concellos"
+            + ":pChoivaT>20<Concellos:tMin>6<Concellos:ceoT>116<Concellos:ceoT>101<Concellos:ceoN>107<Con"
+            + "cellos:ceoM>107<Concellos:tMax>13<Concellos:pChoivaT>40<Concellos:pChoivaN>40<Concellos:pC"
+            + "hoivaM>20<Concellos:pChoivaM>10<Concellos:ceoT>105<Concellos:pChoivaM>5<Concellos:tMin>10<"
+            + "Concellos:tMax>20<Concellos:ceo>111<Concellos:ceo>101<Concellos:pChoivaN>10<Concellos:ceoN"
+            + ">101<Concellos:ceoM>103<Concellos:tMax>22<Concellos:tMax>17<Concellos:tMax>11<Concellos:ce"
+            + "o>103<Concellos:tMin>9<Concellos:tMin>13<Concellos:tMax>18<Concellos:tMax>14<item>\n"
+            + "</rss>\n"
+            + "<Concellos:tMax>19<Concellos:ceo>105<Concellos:tMin>11</link>\n"
+            + "</item>\n"
+            + "</guid>\n"
+            + "<Concellos:tMax>8<Concellos:ceo>107<Concellos:pChoiva>80</Concellos:ceo>\n"
+            + "<Concellos:pChoiva>40<Concellos:pChoiva>10</title>\n"
+            + "</Concellos:ceoT>\n"
+            + "</Concellos:ceoN>\n"
+            + "</Concellos:ceoM>\n"
+            + "<Concellos:pChoiva>0</Concellos:vento>\n"
+            + "<channel>\n"
+            + "</Concellos:ventoT>\n"
+            + "</Concellos:ventoN>\n"
+            + "</Concellos:ventoM>\n"
+            + "</Concellos:pChoiva>\n"
+            + "</pubDate>\n"
+            + "</channel>\n"
+            + "</Concellos:pChoivaT>\n"
+            + "</Concellos:pChoivaN>\n"
+            + "</Concellos:pChoivaM>\n"
+            + "<language>gl</language>\n"
+            + "</copyright>\n"
+            + "</description>\n"
+            + "</Concellos:tMin>\n"
+            + "</Concellos:tMax>\n"
+            + "<title>MeteoGalicia - Predici\u00f3n para o concello<title>MeteoGalicia - Predici\u00f3n p"
+            + "ara medio prazo</Concellos:idConcello>\n"
+            + "</Concellos:nomeConcello>\n"
+            + "</Concellos:dataCreacion>\n"
+            + "</Concellos:dataPredicion>\n"
+            + "<Concellos:dataPredicion formato=\"dd/MM/yyyy\">16/11/2020<Concellos:dataPredicion formato"
+            + "=\"dd/MM/yyyy\">15/11/2020<Concellos:dataPredicion formato=\"dd/MM/yyyy\">14/11/2020<link>"
+            + "http://www.meteogalicia.es<Concellos:dataCreacion>2020-11-10T07:00:00Z<?xml version=\"1.0\""
+            + " encoding=\"UTF-8\"?>\n"
+            + "<Concellos:dataCreacion>2020-11-10T13:00:00Z<Concellos:dataCreacion>2020-11-10T19:00:00Z<C"
+            + "oncellos:dataPredicion formato=\"dd/MM/yyyy\">13/11/2020<Concellos:dataPredicion formato=\""
+            + "dd/MM/yyyy\">12/11/2020<Concellos:dataPredicion formato=\"dd/MM/yyyy\">11/11/2020<Concello"
+            + "s:dataPredicion formato=\"dd/MM/yyyy\">10/11/2020<description>Predici\u00f3n meteorol\u00f3"
+            + "xica para concellos de Galicia<copyright>MeteoGalicia. Conseller\u00eda de Medio Ambiente,"
+            + " Territorio e Infraestruturas. Xunta de Galicia<rss version=\"2.0\" xmlns:Concellos=\"http"
+            + "://www.meteogalicia.es/Concellos\" xmlns:georss=\"http://www.georss.org/georss\">\n";
+
+    private FeedDictionary() {
+    }
+}
@@ -0,0 +1,230 @@
+package org.otempo.rss;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * RSS que se está descargando. Se lee directamente desde la red (para parsearlo a la vez que
+ * llega), y cada byte leído se copia también en memoria (comprimido, según el formato en que se
+ * guarden las copias). La copia sólo pasa a la caché cuando StationCache.commitDownload confirma que el RSS se
+ * parseó bien; hasta entonces la copia anterior sigue intacta.
+ */
+class FeedDownload extends FilterInputStream {
+    /**
+     * @param rss       Flujo del RSS tal como llega de la red (ya descomprimido)
+     * @param format    Formato de la copia: FeedPack.FLAG_DICTIONARY, FeedPack.FLAG_COMPRESSED (gzip) o 0 (sin comprimir)
+     * @param stationId ID de la estación
+     * @param metadata  Metadatos (validadores y frescura) de la respuesta, a guardar con la copia
+     */
+    FeedDownload(InputStream rss, int format, int stationId, boolean shortTerm, Properties metadata) {
+        super(rss);
+        _format = format;
+        OutputStream copy = _content;
+        if (format == FeedPack.FLAG_DICTIONARY) {
+            copy = DictionaryCodec.compress(_content);
+        } else if (format == FeedPack.FLAG_COMPRESSED) {
+            try {
+                copy = new GZIPOutputStream(_content);
+            } catch (IOException e) {
+                // Escribiendo en memoria no puede fallar
+                throw new AssertionError(e);
+            }
+        }
+        _copy = copy;
+        _stationId = stationId;
+        _shortTerm = shortTerm;
+        _metadata = metadata;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            copy(new byte[]{(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = in.read(buffer, offset, length);
+        if (n > 0) {
+            copy(buffer, offset, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Lo que se salte el parser también tiene que acabar en la copia
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * No hace nada: algunos parsers cierran el flujo al terminar, y todavía falta leer lo que quede
+     * y decidir qué hacer con la copia. Se cierra desde finish o abort.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Lee el RSS entero sin parsearlo, para poder compararlo con la copia (getHash) antes de parsear.
+     * Después se parsea lo que devuelve, no este flujo, que ya está al final.
+     *
+     * @return El RSS tal como llegó, sin comprimir
+     */
+    byte[] readAll() throws IOException {
+        ByteArrayOutputStream rss = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = read(buffer, 0, buffer.length)) != -1) {
+            rss.write(buffer, 0, n);
+        }
+        return rss.toByteArray();
+    }
+
+    /**
+     * Lee lo que quede del RSS (el parser puede no llegar hasta el final), y cierra la red y la copia.
+     *
+     * @return true si la copia tiene el RSS completo y se puede guardar
+     */
+    boolean finish() throws IOException {
+        if (_closed) {
+            return false;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (read(buffer, 0, buffer.length) != -1) {
+            }
+        } finally {
+            closeAll();
+        }
+        return !_copyFailed;
+    }
+
+    /**
+     * Abandona la descarga: cierra la red y descarta la copia. No hace nada si ya se terminó con finish.
+     */
+    void abort() {
+        if (_closed) {
+            return;
+        }
+        try {
+            closeAll();
+        } catch (IOException ignored) {
+        }
+        _copyFailed = true;
+    }
+
+    /**
+     * @return La copia del RSS tal como se debe guardar, válida tras un finish que devolvió true
+     */
+    byte[] getContent() {
+        return _content.toByteArray();
+    }
+
+    /**
+     * @return Formato de la copia (FeedPack.FLAG_*)
+     */
+    int getFormat() {
+        return _format;
+    }
+
+    /**
+     * @return Hash del RSS sin comprimir, para saber si ha cambiado
+     */
+    int getHash() {
+        return (int) _hash.getValue();
+    }
+
+    int getStationId() {
+        return _stationId;
+    }
+
+    boolean isShortTerm() {
+        return _shortTerm;
+    }
+
+    /**
+     * @return Metadatos de la respuesta, a guardar junto con la copia
+     */
+    Properties getMetadata() {
+        return _metadata;
+    }
+
+    /**
+     * Copia lo que se acaba de leer. Si falla se deja de copiar, pero el parseo sigue: simplemente
+     * esta descarga no se guardará.
+     */
+    private void copy(byte[] buffer, int offset, int length) {
+        // El hash sigue aunque falle la copia, para comparar con lo guardado sin depender de ella
+        _hash.update(buffer, offset, length);
+        if (_copyFailed) {
+            return;
+        }
+        try {
+            _copy.write(buffer, offset, length);
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to copy station " + _stationId + ", download will not be cached", e);
+            _copyFailed = true;
+        }
+    }
+
+    /**
+     * Cierra la red y la copia
+     */
+    private void closeAll() throws IOException {
+        _closed = true;
+        try {
+            _copy.close();
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to copy station " + _stationId + ", download will not be cached", e);
+            _copyFailed = true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private final ByteArrayOutputStream _content = new ByteArrayOutputStream(); ///< Copia tal como se guarda
+    private final OutputStream _copy; ///< Por donde se escribe la copia (comprimiendo o no)
+    private final int _format; ///< Formato de la copia (FeedPack.FLAG_*)
+    private final CRC32 _hash = new CRC32(); ///< Hash de lo leído, sin comprimir
+    private final int _stationId; ///< ID de la estación
+    private final boolean _shortTerm; ///< RSS a corto o a medio plazo
+    private final Properties _metadata; ///< Metadatos de la respuesta
+    private boolean _copyFailed = false; ///< Falló alguna escritura en la copia
+    private boolean _closed = false; ///< Ya se cerró, con finish o abort
+}
@@ -0,0 +1,637 @@
+package org.otempo.rss;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Fichero único con todas las copias de los RSS, en lugar de dos ficheros sueltos por estación.
+ * Empieza con una cabecera y un índice de tamaño fijo (una ranura por estación y tipo de RSS, con
+ * la posición, tamaño, fechas y hash de la copia), seguidos de las copias una detrás de otra. Las
+ * copias nuevas se añaden al final y la ranura pasa a apuntar a ellas; el hueco de la anterior se
+ * recupera compactando el fichero en segundo plano cuando se acumula demasiado.
+ * Todo el fichero está mapeado en memoria: consultar la frescura de una copia es leer su ranura, y
+ * el parser lee la copia directamente del mapeo.
+ * Para sobrevivir a un corte a medio escribir, la copia nueva se vuelca a disco antes de que la
+ * ranura apunte a ella, y la ranura guarda un CRC de cada copia y la posición de la anterior: si la
+ * vigente resulta estar dañada, se vuelve a la anterior en lugar de quedarse sin nada.
+ */
+class FeedPack {
+    private static final int MAGIC = 0x4f54504b; ///< "OTPK"
+    private static final int VERSION = 2; ///< Versión del formato; si no coincide, se empieza de cero
+    private static final int CAPACITY = 1024; ///< Ranuras del índice (hay unas 315 estaciones, con dos RSS cada una)
+    private static final int HEADER_SIZE = 128; ///< magic, versión, ranuras, libre, fin de los datos, bytes desperdiciados (y relleno)
+    private static final int SLOT_SIZE = 128; ///< Tamaño de cada ranura: así ninguna queda partida entre dos páginas
+    private static final long DATA_START = HEADER_SIZE + (long) CAPACITY * SLOT_SIZE; ///< Donde empiezan las copias
+    private static final long GROWTH = 256 * 1024; ///< El fichero crece de este tamaño en adelante, para no remapear en cada copia
+    private static final long MIN_GARBAGE = 256 * 1024; ///< Por debajo de esto no merece la pena compactar
+
+    // Posiciones dentro de la cabecera
+    private static final int HEADER_DATA_END = 16;
+    private static final int HEADER_GARBAGE = 24;
+
+    // Posiciones dentro de cada ranura
+    private static final int SLOT_KEY = 0; ///< int: estación y tipo de RSS (0 si está libre)
+    private static final int SLOT_FLAGS = 4; ///< int: FLAG_*
+    private static final int SLOT_OFFSET = 8; ///< long: posición de la copia en el fichero
+    private static final int SLOT_LENGTH = 16; ///< int: tamaño total (validadores + RSS)
+    private static final int SLOT_META_LENGTH = 20; ///< int: tamaño de los validadores (ETag y Last-Modified)
+    private static final int SLOT_VALIDATED = 24; ///< long: instante (ms) en que se validó por última vez
+    private static final int SLOT_EXPIRES = 32; ///< long: instante (ms) a partir del cual deja de ser fresca
+    private static final int SLOT_HASH = 40; ///< int: hash del RSS sin comprimir
+    private static final int SLOT_ACCESSED = 48; ///< long: instante (ms) en que se leyó por última vez (0 si nunca)
+    private static final int SLOT_CRC = 56; ///< int: CRC32 de la copia tal como está en el fichero
+    private static final int SLOT_PREV_FLAGS = 60; ///< int: FLAG_* de la copia anterior
+    private static final int SLOT_PREV_OFFSET = 64; ///< long: posición de la copia anterior
+    private static final int SLOT_PREV_LENGTH = 72; ///< int: tamaño de la copia anterior (0 si no hay)
+    private static final int SLOT_PREV_META_LENGTH = 76; ///< int: tamaño de los validadores de la copia anterior
+    private static final int SLOT_PREV_HASH = 80; ///< int: hash del RSS de la copia anterior
+    private static final int SLOT_PREV_CRC = 84; ///< int: CRC32 de la copia anterior
+
+    static final int FLAG_COMPRESSED = 1; ///< La copia está comprimida con gzip
+    static final int FLAG_DICTIONARY = 2; ///< La copia está comprimida con el diccionario de DictionaryCodec
+
+    /**
+     * Copia de un RSS, tal como está en su ranura del índice
+     */
+    static class Entry {
+        Entry(int stationId, boolean shortTerm, int flags, long offset, int length, int metaLength,
+              long validated, long expires, int hash, long accessed, int crc) {
+            this.stationId = stationId;
+            this.shortTerm = shortTerm;
+            this.flags = flags;
+            this.offset = offset;
+            this.length = length;
+            this.metaLength = metaLength;
+            this.validated = validated;
+            this.expires = expires;
+            this.hash = hash;
+            this.accessed = accessed;
+            this.crc = crc;
+        }
+
+        final int stationId; ///< ID de la estación
+        final boolean shortTerm; ///< RSS a corto o a medio plazo
+        final int flags; ///< FLAG_*
+        final long offset; ///< Posición de la copia en el fichero
+        final int length; ///< Tamaño total (validadores + RSS)
+        final int metaLength; ///< Tamaño de los validadores
+        final long validated; ///< Instante (ms) en que se validó por última vez
+        final long expires; ///< Instante (ms) a partir del cual deja de ser fresca
+        final int hash; ///< Hash del RSS sin comprimir
+        final long accessed; ///< Instante (ms) en que se leyó por última vez (0 si nunca)
+        final int crc; ///< CRC32 de la copia tal como está en el fichero
+    }
+
+    /**
+     * RSS de una copia, abierto para leerlo
+     */
+    static class Body {
+        Body(int flags, InputStream stream) {
+            this.flags = flags;
+            this.stream = stream;
+        }
+
+        final int flags; ///< FLAG_* de la copia
+        final InputStream stream; ///< RSS tal como está guardado (comprimido según flags)
+    }
+
+    /**
+     * @param file Fichero con las copias. Si no existe o no se reconoce, se crea vacío
+     */
+    FeedPack(File file) throws IOException {
+        _file = file;
+        open();
+    }
+
+    /**
+     * @return La copia de un RSS, o null si no hay
+     */
+    @Nullable
+    synchronized Entry find(int stationId, boolean shortTerm) {
+        int slot = findSlot(makeKey(stationId, shortTerm), false);
+        return slot >= 0 ? readEntry(slot) : null;
+    }
+
+    /**
+     * @return Todas las copias guardadas
+     */
+    synchronized List<Entry> list() {
+        List<Entry> entries = new ArrayList<>();
+        for (int slot = 0; slot < CAPACITY; slot++) {
+            if (_map.getInt(slotBase(slot) + SLOT_KEY) != 0) {
+                entries.add(readEntry(slot));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return Bytes ocupados por las copias vigentes (sin contar el espacio desperdiciado)
+     */
+    synchronized long getLiveBytes() {
+        return _map.getLong(HEADER_DATA_END) - DATA_START - _map.getLong(HEADER_GARBAGE);
+    }
+
+    /**
+     * @return Los validadores HTTP de la copia de un RSS: ETag y Last-Modified (cualquiera de ellos
+     * puede ser null), o null si no hay copia
+     */
+    @Nullable
+    synchronized String[] readValidators(int stationId, boolean shortTerm) {
+        int slot = findSlot(makeKey(stationId, shortTerm), false);
+        if (slot < 0) {
+            return null;
+        }
+        Entry entry = readEntry(slot);
+        String[] validators = new String[2];
+        if (!isInBounds(entry.offset, entry.metaLength)) {
+            return validators;
+        }
+        ByteBuffer meta = slice(entry.offset, entry.metaLength);
+        for (int i = 0; i < validators.length && meta.remaining() >= 2; i++) {
+            int length = meta.getShort() & 0xffff;
+            if (length > 0 && length <= meta.remaining()) {
+                byte[] bytes = new byte[length];
+                meta.get(bytes);
+                validators[i] = decode(bytes);
+            }
+        }
+        return validators;
+    }
+
+    /**
+     * Busca la copia de un RSS, comprueba que está intacta (su CRC coincide) y la abre para leerla
+     * directamente del mapeo, todo de una vez: una compactación entre medias movería las copias, y
+     * las posiciones de una Entry obtenida antes ya no valdrían. Si la copia vigente está dañada se
+     * vuelve a la anterior, que queda como no validada para que se revalide en cuanto se pueda.
+     * Comprobar el CRC es barato: una pasada por unos pocos KB que ya están en memoria.
+     *
+     * @param accessed Instante (ms) a apuntar como última lectura, para saber cuáles llevan más tiempo sin usarse
+     * @return El RSS, o null si no hay copia o no queda ninguna intacta
+     */
+    @Nullable
+    synchronized Body openVerified(int stationId, boolean shortTerm, long accessed) {
+        int slot = findSlot(makeKey(stationId, shortTerm), false);
+        if (slot < 0) {
+            return null;
+        }
+        Entry entry = readEntry(slot);
+        if (!verify(entry)) {
+            // Una copia a medio escribir o dañada: mejor la anterior que volver a descargarla
+            Log.w("OTempo", "Stored copy of station " + stationId + " is corrupt, falling back to the previous one");
+            if (!fallBack(slot)) {
+                remove(stationId, shortTerm);
+                return null;
+            }
+            entry = readEntry(slot);
+            if (!verify(entry)) {
+                remove(stationId, shortTerm);
+                return null;
+            }
+        }
+        _map.putLong(slotBase(slot) + SLOT_ACCESSED, accessed);
+        return new Body(entry.flags, new ByteBufferInputStream(slice(entry.offset + entry.metaLength, entry.length - entry.metaLength)));
+    }
+
+    /**
+     * Descarta la copia vigente de una ranura (porque está dañada) y vuelve a la anterior
+     *
+     * @return false si no había copia anterior (y entonces no se toca nada)
+     */
+    private boolean fallBack(int slot) {
+        int base = slotBase(slot);
+        int prevLength = _map.getInt(base + SLOT_PREV_LENGTH);
+        if (prevLength == 0) {
+            return false;
+        }
+        addGarbage(_map.getInt(base + SLOT_LENGTH));
+        _map.putInt(base + SLOT_FLAGS, _map.getInt(base + SLOT_PREV_FLAGS));
+        _map.putLong(base + SLOT_OFFSET, _map.getLong(base + SLOT_PREV_OFFSET));
+        _map.putInt(base + SLOT_LENGTH, prevLength);
+        _map.putInt(base + SLOT_META_LENGTH, _map.getInt(base + SLOT_PREV_META_LENGTH));
+        _map.putInt(base + SLOT_HASH, _map.getInt(base + SLOT_PREV_HASH));
+        _map.putInt(base + SLOT_CRC, _map.getInt(base + SLOT_PREV_CRC));
+        _map.putLong(base + SLOT_VALIDATED, 0);
+        _map.putLong(base + SLOT_EXPIRES, 0);
+        _map.putInt(base + SLOT_PREV_LENGTH, 0);
+        return true;
+    }
+
+    /**
+     * Guarda una nueva copia de un RSS, sustituyendo a la que hubiera (que se conserva como anterior)
+     *
+     * @param body         RSS tal como se guarda (comprimido o no, según flags)
+     * @param flags        FLAG_*
+     * @param hash         Hash del RSS sin comprimir
+     * @param etag         Cabecera ETag de la respuesta, o null
+     * @param lastModified Cabecera Last-Modified de la respuesta, o null
+     * @return false si no se pudo guardar (índice lleno o error de escritura)
+     */
+    synchronized boolean put(int stationId, boolean shortTerm, byte[] body, int flags, int hash,
+                             @Nullable String etag, @Nullable String lastModified, long validated, long expires) {
+        int key = makeKey(stationId, shortTerm);
+        int slot = findSlot(key, true);
+        if (slot < 0) {
+            Log.w("OTempo", "Feed pack index is full, not storing station " + stationId);
+            return false;
+        }
+        byte[] etagBytes = encode(etag);
+        byte[] lastModifiedBytes = encode(lastModified);
+        int metaLength = 4 + etagBytes.length + lastModifiedBytes.length;
+        int length = metaLength + body.length;
+        long offset = _map.getLong(HEADER_DATA_END);
+        try {
+            ensureSize(offset + length);
+        } catch (IOException e) {
+            Log.e("OTempo", "Unable to grow feed pack " + _file, e);
+            return false;
+        }
+        // Primero la copia, ya en disco, y sólo después la ranura que apunta a ella: si se corta a
+        // medias, la ranura sigue apuntando a la copia anterior, intacta
+        ByteBuffer record = slice(offset, length);
+        record.putShort((short) etagBytes.length).put(etagBytes);
+        record.putShort((short) lastModifiedBytes.length).put(lastModifiedBytes);
+        record.put(body);
+        int crc = crc(slice(offset, length));
+        _map.force();
+        int base = slotBase(slot);
+        if (_map.getInt(base + SLOT_KEY) == key) {
+            // La vigente pasa a ser la anterior, y la que era anterior se desecha
+            addGarbage(_map.getInt(base + SLOT_PREV_LENGTH));
+            _map.putInt(base + SLOT_PREV_FLAGS, _map.getInt(base + SLOT_FLAGS));
+            _map.putLong(base + SLOT_PREV_OFFSET, _map.getLong(base + SLOT_OFFSET));
+            _map.putInt(base + SLOT_PREV_LENGTH, _map.getInt(base + SLOT_LENGTH));
+            _map.putInt(base + SLOT_PREV_META_LENGTH, _map.getInt(base + SLOT_META_LENGTH));
+            _map.putInt(base + SLOT_PREV_HASH, _map.getInt(base + SLOT_HASH));
+            _map.putInt(base + SLOT_PREV_CRC, _map.getInt(base + SLOT_CRC));
+        }
+        _map.putInt(base + SLOT_FLAGS, flags);
+        _map.putLong(base + SLOT_OFFSET, offset);
+        _map.putInt(base + SLOT_LENGTH, length);
+        _map.putInt(base + SLOT_META_LENGTH, metaLength);
+        _map.putLong(base + SLOT_VALIDATED, validated);
+        _map.putLong(base + SLOT_EXPIRES, expires);
+        _map.putInt(base + SLOT_HASH, hash);
+        _map.putInt(base + SLOT_CRC, crc);
+        if (_map.getInt(base + SLOT_KEY) != key) {
+            // Recién guardada cuenta como usada: si no, sería la primera en desalojarse
+            _map.putLong(base + SLOT_ACCESSED, validated);
+        }
+        _map.putInt(base + SLOT_KEY, key);
+        _map.putLong(HEADER_DATA_END, offset + length);
+        _map.force();
+        return true;
+    }
+
+    /**
+     * Renueva la frescura de una copia que el servidor confirma que sigue vigente
+     *
+     * @return false si no hay copia
+     */
+    synchronized boolean touch(int stationId, boolean shortTerm, long validated, long expires) {
+        int slot = findSlot(makeKey(stationId, shortTerm), false);
+        if (slot < 0) {
+            return false;
+        }
+        int base = slotBase(slot);
+        _map.putLong(base + SLOT_VALIDATED, validated);
+        _map.putLong(base + SLOT_EXPIRES, expires);
+        return true;
+    }
+
+    /**
+     * Borra la copia de un RSS, y la anterior si la hay
+     * @return Bytes que dejan de contar en getLiveBytes
+     */
+    synchronized int remove(int stationId, boolean shortTerm) {
+        int slot = findSlot(makeKey(stationId, shortTerm), false);
+        if (slot < 0) {
+            return 0;
+        }
+        int freed = _map.getInt(slotBase(slot) + SLOT_LENGTH) + _map.getInt(slotBase(slot) + SLOT_PREV_LENGTH);
+        addGarbage(freed);
+        // Con sondeo lineal no se puede vaciar la ranura sin más: se recolocan las siguientes
+        int hole = slot;
+        clearSlot(hole);
+        for (int next = (hole + 1) % CAPACITY; _map.getInt(slotBase(next) + SLOT_KEY) != 0; next = (next + 1) % CAPACITY) {
+            int home = hash(_map.getInt(slotBase(next) + SLOT_KEY));
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                copySlot(next, hole);
+                clearSlot(next);
+                hole = next;
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return true si hay suficiente espacio desperdiciado como para que merezca la pena compactar
+     */
+    synchronized boolean needsCompaction() {
+        long garbage = _map.getLong(HEADER_GARBAGE);
+        return garbage >= MIN_GARBAGE && garbage > getLiveBytes();
+    }
+
+    /**
+     * Reescribe el fichero sólo con las copias vigentes (y sus anteriores), en un fichero nuevo que
+     * se vuelca a disco y luego sustituye al actual. Los flujos abiertos con openVerified siguen leyendo
+     * del mapeo anterior.
+     */
+    synchronized void compact() throws IOException {
+        File compacted = new File(_file.getPath() + ".compact");
+        RandomAccessFile file = new RandomAccessFile(compacted, "rw");
+        try {
+            long dataEnd = DATA_START;
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                if (_map.getInt(slotBase(slot) + SLOT_KEY) != 0) {
+                    dataEnd += _map.getInt(slotBase(slot) + SLOT_LENGTH) + _map.getInt(slotBase(slot) + SLOT_PREV_LENGTH);
+                }
+            }
+            file.setLength(dataEnd);
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, dataEnd);
+            writeHeader(map);
+            long offset = DATA_START;
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                int base = slotBase(slot);
+                if (_map.getInt(base + SLOT_KEY) == 0) {
+                    continue;
+                }
+                for (int i = 0; i < SLOT_SIZE; i++) {
+                    map.put(base + i, _map.get(base + i));
+                }
+                int length = _map.getInt(base + SLOT_LENGTH);
+                copyRecord(map, offset, _map.getLong(base + SLOT_OFFSET), length);
+                map.putLong(base + SLOT_OFFSET, offset);
+                offset += length;
+                int prevLength = _map.getInt(base + SLOT_PREV_LENGTH);
+                if (prevLength > 0) {
+                    copyRecord(map, offset, _map.getLong(base + SLOT_PREV_OFFSET), prevLength);
+                    map.putLong(base + SLOT_PREV_OFFSET, offset);
+                    offset += prevLength;
+                }
+            }
+            map.putLong(HEADER_DATA_END, offset);
+            map.force();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        long before = _map.capacity();
+        close();
+        if (!compacted.renameTo(_file)) {
+            compacted.delete();
+            open();
+            throw new IOException("Unable to replace " + _file);
+        }
+        open();
+        Log.d("OTempo", "Compacted feed pack from " + before + " to " + _map.capacity() + " bytes");
+    }
+
+    /**
+     * @return true si una copia está tal como se escribió: dentro del fichero, y con su CRC
+     */
+    private boolean verify(Entry entry) {
+        return isInBounds(entry.offset, entry.length) && crc(slice(entry.offset, entry.length)) == entry.crc;
+    }
+
+    /**
+     * @return true si una parte del fichero cae dentro de los datos (una ranura dañada podría apuntar fuera)
+     */
+    private boolean isInBounds(long offset, int length) {
+        return offset >= DATA_START && length >= 0 && offset + length <= _map.getLong(HEADER_DATA_END);
+    }
+
+    /**
+     * Copia una copia del mapeo actual a otro
+     */
+    private void copyRecord(MappedByteBuffer map, long to, long from, int length) {
+        ByteBuffer target = map.duplicate();
+        target.position((int) to);
+        target.put(slice(from, length));
+    }
+
+    /**
+     * Abre (o crea) el fichero y lo mapea entero
+     */
+    private void open() throws IOException {
+        _file.getParentFile().mkdirs();
+        _raf = new RandomAccessFile(_file, "rw");
+        long length = _raf.length();
+        boolean valid = length >= DATA_START;
+        if (valid) {
+            _map = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            valid = _map.getInt(0) == MAGIC && _map.getInt(4) == VERSION && _map.getInt(8) == CAPACITY
+                    && _map.getLong(HEADER_DATA_END) >= DATA_START && _map.getLong(HEADER_DATA_END) <= length;
+        }
+        if (!valid) {
+            if (length > 0) {
+                Log.w("OTempo", "Discarding unknown feed pack " + _file);
+            }
+            _raf.setLength(0);
+            _raf.setLength(DATA_START + GROWTH);
+            _map = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_START + GROWTH);
+            writeHeader(_map);
+        }
+    }
+
+    /**
+     * Libera el fichero. El mapeo sigue siendo válido para quien lo esté leyendo
+     */
+    private void close() throws IOException {
+        _raf.close();
+    }
+
+    /**
+     * Escribe una cabecera y un índice vacíos
+     */
+    private static void writeHeader(MappedByteBuffer map) {
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, CAPACITY);
+        map.putInt(12, 0);
+        map.putLong(HEADER_DATA_END, DATA_START);
+        map.putLong(HEADER_GARBAGE, 0);
+        for (int i = HEADER_DATA_END + 16; i < DATA_START; i++) {
+            map.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Agranda el fichero (y el mapeo) si no caben size bytes
+     */
+    private void ensureSize(long size) throws IOException {
+        if (size <= _map.capacity()) {
+            return;
+        }
+        long newSize = Math.max(size, _map.capacity() + GROWTH);
+        _raf.setLength(newSize);
+        _map = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /**
+     * @return Una vista independiente de una parte del mapeo
+     */
+    private ByteBuffer slice(long offset, int length) {
+        ByteBuffer view = _map.duplicate();
+        view.position((int) offset);
+        view.limit((int) offset + length);
+        return view.slice();
+    }
+
+    /**
+     * @return La copia a la que apunta una ranura ocupada
+     */
+    private Entry readEntry(int slot) {
+        int base = slotBase(slot);
+        int key = _map.getInt(base + SLOT_KEY);
+        return new Entry((key - 1) / 2, key % 2 == 1, _map.getInt(base + SLOT_FLAGS), _map.getLong(base + SLOT_OFFSET),
+                _map.getInt(base + SLOT_LENGTH), _map.getInt(base + SLOT_META_LENGTH),
+                _map.getLong(base + SLOT_VALIDATED), _map.getLong(base + SLOT_EXPIRES),
+                _map.getInt(base + SLOT_HASH), _map.getLong(base + SLOT_ACCESSED), _map.getInt(base + SLOT_CRC));
+    }
+
+    /**
+     * @return CRC32 de una parte del mapeo
+     */
+    private static int crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+        while (data.hasRemaining()) {
+            int n = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, n);
+            crc.update(buffer, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private void addGarbage(int length) {
+        _map.putLong(HEADER_GARBAGE, _map.getLong(HEADER_GARBAGE) + length);
+    }
+
+    /**
+     * Busca la ranura de una clave, por sondeo lineal
+     *
+     * @param create Si no está, devolver la primera ranura libre en la que ponerla
+     * @return La ranura, o -1 si no está (o no hay sitio)
+     */
+    private int findSlot(int key, boolean create) {
+        int slot = hash(key);
+        for (int i = 0; i < CAPACITY; i++) {
+            int current = _map.getInt(slotBase(slot) + SLOT_KEY);
+            if (current == key) {
+                return slot;
+            } else if (current == 0) {
+                return create ? slot : -1;
+            }
+            slot = (slot + 1) % CAPACITY;
+        }
+        return -1;
+    }
+
+    private void copySlot(int from, int to) {
+        for (int i = 0; i < SLOT_SIZE; i++) {
+            _map.put(slotBase(to) + i, _map.get(slotBase(from) + i));
+        }
+    }
+
+    private void clearSlot(int slot) {
+        for (int i = 0; i < SLOT_SIZE; i++) {
+            _map.put(slotBase(slot) + i, (byte) 0);
+        }
+    }
+
+    private static int slotBase(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(int key) {
+        return ((key * 0x9e3779b1) >>> 1) % CAPACITY;
+    }
+
+    /**
+     * @return La clave de un RSS en el índice (nunca 0, que marca las ranuras libres)
+     */
+    private static int makeKey(int stationId, boolean shortTerm) {
+        return stationId * 2 + (shortTerm ? 1 : 2);
+    }
+
+    private static byte[] encode(@Nullable String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            // Las cabeceras nunca deberían ser tan largas, pero no caben más en la longitud
+            return bytes.length <= 0xffff ? bytes : new byte[0];
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Flujo que lee de una parte del mapeo, sin copiarla
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        ByteBufferInputStream(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, _buffer.remaining());
+            _buffer.get(buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, _buffer.remaining()));
+            _buffer.position(_buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return _buffer.remaining();
+        }
+
+        private final ByteBuffer _buffer; ///< Parte del mapeo que queda por leer
+    }
+
+    private final File _file; ///< Fichero con las copias
+    private RandomAccessFile _raf; ///< Fichero abierto
+    private MappedByteBuffer _map; ///< Mapeo del fichero entero
+}
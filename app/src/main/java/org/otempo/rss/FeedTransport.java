@@ -0,0 +1,57 @@
+package org.otempo.rss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Forma de hacer llegar las peticiones de RSS al servidor. Por defecto se usa HttpFeedTransport,
+ * pero se puede sustituir (StationCache.setTransport) por ejemplo por un servidor local que
+ * simule a meteogalicia, para probar la sincronización sin conexión.
+ */
+public interface FeedTransport {
+    /**
+     * Respuesta del servidor a una petición. Hay que leer el cuerpo entero y cerrarlo, o llamar a
+     * close, para que la conexión se pueda reutilizar en la siguiente petición.
+     */
+    interface Response {
+        /**
+         * @return Código HTTP de la respuesta
+         */
+        int getStatusCode();
+
+        /**
+         * @return El valor de una cabecera de la respuesta, o null si no viene
+         */
+        @Nullable
+        String getHeader(String name);
+
+        /**
+         * @return El valor de una cabecera de fecha (Date, Expires...) en ms, o defaultValue si no viene o no es válida
+         */
+        long getHeaderDate(String name, long defaultValue);
+
+        /**
+         * @return El cuerpo de la respuesta, tal como llega (sin descomprimir)
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Termina con la respuesta sin leer el cuerpo, devolviendo la conexión si es posible
+         */
+        void close();
+    }
+
+    /**
+     * Hace una petición GET
+     *
+     * @param url            Dirección del RSS
+     * @param headers        Cabeceras a enviar
+     * @param connectTimeout Tiempo máximo para establecer la conexión (en ms)
+     * @param readTimeout    Tiempo máximo de espera por datos (en ms)
+     * @return La respuesta, ya con el código y las cabeceras disponibles
+     */
+    Response get(String url, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException;
+}
@@ -0,0 +1,174 @@
+package org.otempo.rss;
+
+import android.util.Log;
+
+import org.otempo.model.StationPrediction;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decodifica los valores numéricos del RSS de meteogalicia directamente del texto acumulado por el
+ * parser, sin crear Strings ni objetos intermedios: se llama para cada elemento de cada RSS.
+ * Acepta lo mismo que Integer.valueOf y Float.valueOf, con los que coincide en el resultado.
+ */
+final class FeedValues {
+    /// Estados del cielo, indexados por código - 101 (los nocturnos, 2xx, son los mismos que los diurnos)
+    private static final StationPrediction.SkyState[] SKY_STATES = {
+            /*101*/StationPrediction.SkyState.CLEAR,
+            /*102*/StationPrediction.SkyState.HIGH_CLOUDS,
+            /*103*/StationPrediction.SkyState.CLOUD_AND_CLEAR,
+            /*104*/StationPrediction.SkyState.MOSTLY_CLOUDY,
+            /*105*/StationPrediction.SkyState.CLOUDY,
+            /*106*/StationPrediction.SkyState.FOG,
+            /*107*/StationPrediction.SkyState.SHOWER,
+            /*108*/StationPrediction.SkyState.SHOWER,
+            /*109*/StationPrediction.SkyState.SHOWER_SNOW,
+            /*100*/StationPrediction.SkyState.DEW,
+            /*111*/StationPrediction.SkyState.RAIN,
+            /*112*/StationPrediction.SkyState.SNOW,
+            /*113*/StationPrediction.SkyState.STORM,
+            /*114*/StationPrediction.SkyState.HAZE,
+            /*115*/StationPrediction.SkyState.FOG_PATCHES,
+            /*116*/StationPrediction.SkyState.MEDIUM_CLOUDS,
+            /*117*/StationPrediction.SkyState.LIGHT_RAIN,
+            /*118*/StationPrediction.SkyState.LIGHT_SHOWER,
+            /*119*/StationPrediction.SkyState.LIGHT_STORM,
+            /*120*/StationPrediction.SkyState.SLEET,
+            /*121*/StationPrediction.SkyState.HAIL
+    };
+    /// Estados del viento, indexados por código - 299 (values() crea un array nuevo en cada llamada)
+    private static final StationPrediction.WindState[] WIND_STATES = StationPrediction.WindState.values();
+    /// Potencias de diez exactas en float/double, para los decimales
+    private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+    /// Dígitos significativos que caben sin redondeo en el cálculo rápido de un float
+    private static final int MAX_FAST_FLOAT_DIGITS = 9;
+
+    /**
+     * Como Integer.valueOf: un signo opcional y dígitos, sin espacios
+     *
+     * @throws NumberFormatException Si el texto no es un entero
+     */
+    static int parseInt(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i++;
+        }
+        if (i == length || length - i > 9) {
+            // Vacío, o tan largo que podría desbordar: que decida Integer
+            return Integer.parseInt(text.toString());
+        }
+        int value = 0;
+        for (; i < length; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                // Integer también acepta dígitos de otros alfabetos; si no, lanza la excepción
+                return Integer.parseInt(text.toString());
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Como Float.valueOf. Los casos habituales (un entero o un decimal sencillo) se calculan
+     * directamente; el resto (exponentes, NaN...) se delegan en Float.
+     *
+     * @throws NumberFormatException Si el texto no es un número
+     */
+    static float parseFloat(CharSequence text) {
+        int start = 0;
+        int end = text.length();
+        // Float.valueOf ignora los espacios alrededor
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1; // -1 mientras no se vea el punto decimal
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+        if (i < end || digits == 0 || digits > MAX_FAST_FLOAT_DIGITS) {
+            return Float.parseFloat(text.toString());
+        }
+        // Una división exacta en double, redondeada una sola vez a float
+        double value = decimals > 0 ? mantissa / POWERS_OF_TEN[decimals] : mantissa;
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * Decodifica un estado del cielo
+     *
+     * @return El estado, o null si el código no se conoce
+     * @TODO(ryu): Añadir nuevos iconos de meteogalicia
+     */
+    @Nullable
+    static StationPrediction.SkyState parseSkyState(CharSequence text) {
+        try {
+            int state = parseInt(text);
+            if (state > 200) {
+                // No distinguimos entre estado diurno y nocturno a estas alturas,
+                // eso se hace automáticamente más tarde.
+                state -= 100;
+            }
+            // Lo convertimos a algo indexable (0..N)
+            state -= 101;
+            if (state < 0 || state >= SKY_STATES.length) {
+                Log.w("OTempo", "Unable to parse sky " + text);
+                return null;
+            }
+            return SKY_STATES[state];
+        } catch (NumberFormatException e) {
+            Log.w("OTempo", "NumberFormatException parsing sky state: [" + text + "]");
+            return null;
+        }
+    }
+
+    /**
+     * Decodifica un estado del viento
+     *
+     * @return El estado, o null si el código no se conoce
+     */
+    @Nullable
+    static StationPrediction.WindState parseWindState(CharSequence text) {
+        try {
+            int state = parseInt(text);
+            // Lo convertimos a algo indexable (0..N)
+            state -= 299;
+            if (state < 0 || state >= WIND_STATES.length) {
+                Log.w("OTempo", "Unable to parse wind " + text);
+                return null;
+            }
+            return WIND_STATES[state];
+        } catch (NumberFormatException e) {
+            Log.w("OTempo", "NumberFormatException parsing wind state: [" + text + "]");
+            return null;
+        }
+    }
+
+    private FeedValues() {
+    }
+}
@@ -0,0 +1,93 @@
+package org.otempo.rss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Transporte por defecto, con HttpURLConnection. Las conexiones con el servidor se mantienen
+ * abiertas y se reutilizan entre peticiones (keep-alive, activo por defecto tanto en Android como
+ * en el JDK), de modo que actualizar varias estaciones seguidas no paga una conexión nueva por cada
+ * RSS. Para que una conexión vuelva al pool hay que leer el cuerpo hasta el final y cerrarlo, nunca
+ * llamar a disconnect. No se tocan las propiedades del sistema (http.keepAlive, http.maxConnections):
+ * afectarían a todas las conexiones de la aplicación, no sólo a las de los RSS.
+ */
+public class HttpFeedTransport implements FeedTransport {
+    @Override
+    public Response get(String url, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        try {
+            conn.getResponseCode();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        return new HttpResponse(conn);
+    }
+
+    /**
+     * Respuesta sobre una HttpURLConnection
+     */
+    private static class HttpResponse implements Response {
+        HttpResponse(HttpURLConnection conn) {
+            _conn = conn;
+        }
+
+        @Override
+        public int getStatusCode() {
+            try {
+                return _conn.getResponseCode();
+            } catch (IOException e) {
+                // Ya se obtuvo al hacer la petición, así que no debería fallar
+                return -1;
+            }
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return _conn.getHeaderField(name);
+        }
+
+        @Override
+        public long getHeaderDate(String name, long defaultValue) {
+            return _conn.getHeaderFieldDate(name, defaultValue);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return getStatusCode() >= 400 ? _conn.getErrorStream() : _conn.getInputStream();
+        }
+
+        @Override
+        public void close() {
+            // Se consume lo que quede (normalmente nada: 304 o una página de error corta) para no perder la conexión
+            try {
+                InputStream body = getBody();
+                if (body != null) {
+                    try {
+                        byte[] buffer = new byte[4096];
+                        //noinspection StatementWithEmptyBody
+                        while (body.read(buffer) != -1) {
+                        }
+                    } finally {
+                        body.close();
+                    }
+                }
+            } catch (IOException e) {
+                _conn.disconnect();
+            }
+        }
+
+        private final HttpURLConnection _conn; ///< Conexión con la respuesta
+    }
+}
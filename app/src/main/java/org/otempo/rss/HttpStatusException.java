@@ -0,0 +1,29 @@
+package org.otempo.rss;
+
+import java.io.IOException;
+
+/**
+ * El servidor ha respondido con un código de error HTTP
+ */
+class HttpStatusException extends IOException {
+    HttpStatusException(int statusCode, String url) {
+        super("HTTP " + statusCode + " for " + url);
+        _statusCode = statusCode;
+    }
+
+    /**
+     * @return El código HTTP devuelto por el servidor
+     */
+    int getStatusCode() {
+        return _statusCode;
+    }
+
+    /**
+     * @return true si es un error del servidor que puede desaparecer reintentando (5xx, 429)
+     */
+    boolean isTransient() {
+        return _statusCode >= 500 || _statusCode == 429;
+    }
+
+    private final int _statusCode;
+}
@@ -18,10 +18,8 @@
  */
 package org.otempo.rss;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.otempo.model.Station;
 import org.otempo.model.StationMediumTermPrediction;
 import org.otempo.model.StationPrediction;
 
@@ -29,18 +27,32 @@ import org.otempo.model.StationPrediction;
  * Handler SAX para parsear el RSS de las estaciones de meteogalicia
  */
 public class MediumTermSAXHandler extends PredictionSAXHandler {
-    public MediumTermSAXHandler(Station station) {
-        super(station, false);
+    private static final int TAG_SKY = FIRST_SPECIFIC_TAG; ///< ceo
+    private static final int TAG_WIND = FIRST_SPECIFIC_TAG + 1; ///< vento
+    private static final int TAG_RAIN = FIRST_SPECIFIC_TAG + 2; ///< pChoiva
+
+    /// Etiquetas del RSS a medio plazo
+    private static final TagTable TAGS = new TagTable(COMMON_TAGS)
+            .add("ceo", TAG_SKY)
+            .add("vento", TAG_WIND)
+            .add("pChoiva", TAG_RAIN);
+
+    public MediumTermSAXHandler() {
+        super(TAGS);
     }
 
     @Override
-    public void endElementSpecific(@NonNull String uri, @NonNull String localName) {
-    	if (localName.equals("ceo")) {
-            getCurrentMediumPrediction().setSkyState(parseSkyState(getCurrentText()));
-        } else if (localName.equals("vento")) {
-            getCurrentMediumPrediction().setWindState(parseWindState(getCurrentText()));
-        } else if (localName.equals("pChoiva")) {
-            getCurrentMediumPrediction().setRainProbability(Float.valueOf(getCurrentText()));
+    public void endElementSpecific(int tag) {
+        switch (tag) {
+            case TAG_SKY:
+                getCurrentMediumPrediction().setSkyState(parseSkyState());
+                break;
+            case TAG_WIND:
+                getCurrentMediumPrediction().setWindState(parseWindState());
+                break;
+            case TAG_RAIN:
+                getCurrentMediumPrediction().setRainProbability(getCurrentFloat());
+                break;
         }
     }
     
@@ -0,0 +1,126 @@
+package org.otempo.rss;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Tabla de RSS que fallan repetidamente (errores HTTP, o XML que no se puede parsear). Mientras
+ * un RSS está en la tabla no se vuelve a pedir a meteogalicia, y se sirve la última copia buena
+ * que haya. Cada nuevo fallo dobla el tiempo de espera, hasta un máximo.
+ * Se guarda en un fichero para que sobreviva entre ejecuciones de los workers.
+ */
+class NegativeCache {
+    private static final long BASE_DELAY = 1000 * 60 * 15; ///< Espera tras el primer fallo (en ms)
+    private static final long MAX_DELAY = 1000 * 3600 * 24; ///< Espera máxima entre intentos (en ms)
+    private static final String KEY_FAILURES = ".failures"; ///< Sufijo de la clave con los fallos seguidos
+    private static final String KEY_RETRY_AT = ".retryAt"; ///< Sufijo de la clave con el instante (ms) en que se puede volver a intentar
+    private static final String KEY_REASON = ".reason"; ///< Sufijo de la clave con el último error (código HTTP o error de parseo)
+
+    /**
+     * @param file Fichero en el que se guarda la tabla
+     */
+    NegativeCache(File file) {
+        _file = file;
+        load();
+    }
+
+    /**
+     * @return true si el RSS ha fallado hace poco y todavía no se debe volver a pedir
+     */
+    synchronized boolean isBlocked(int stationId, boolean shortTerm) {
+        String retryAt = _entries.getProperty(makeKey(stationId, shortTerm) + KEY_RETRY_AT);
+        if (retryAt == null) {
+            return false;
+        }
+        try {
+            return new Date().getTime() < Long.parseLong(retryAt);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Registra un fallo del RSS, y calcula cuándo se podrá volver a intentar
+     *
+     * @param reason Código HTTP o error de parseo
+     */
+    synchronized void recordFailure(int stationId, boolean shortTerm, String reason) {
+        String key = makeKey(stationId, shortTerm);
+        int failures;
+        try {
+            failures = Integer.parseInt(_entries.getProperty(key + KEY_FAILURES, "0")) + 1;
+        } catch (NumberFormatException e) {
+            failures = 1;
+        }
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 16));
+        _entries.setProperty(key + KEY_FAILURES, String.valueOf(failures));
+        _entries.setProperty(key + KEY_RETRY_AT, String.valueOf(new Date().getTime() + delay));
+        _entries.setProperty(key + KEY_REASON, reason);
+        Log.w("OTempo", "Feed " + key + " failed " + failures + " times (" + reason + "), skipping for " + delay / 60000 + " minutes");
+        save();
+    }
+
+    /**
+     * Saca el RSS de la tabla, porque ya funciona
+     */
+    synchronized void recordSuccess(int stationId, boolean shortTerm) {
+        String key = makeKey(stationId, shortTerm);
+        if (_entries.remove(key + KEY_FAILURES) != null) {
+            _entries.remove(key + KEY_RETRY_AT);
+            _entries.remove(key + KEY_REASON);
+            save();
+        }
+    }
+
+    private static String makeKey(int stationId, boolean shortTerm) {
+        return String.format(Locale.US, "%d_%s", stationId, shortTerm ? "short" : "medium");
+    }
+
+    /**
+     * Lee la tabla desde el fichero
+     */
+    private void load() {
+        if (!_file.exists()) {
+            return;
+        }
+        try {
+            InputStream stream = new FileInputStream(_file);
+            try {
+                _entries.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to read negative cache " + _file, e);
+        }
+    }
+
+    /**
+     * Guarda la tabla en el fichero
+     */
+    private void save() {
+        try {
+            _file.getParentFile().mkdirs();
+            OutputStream stream = new FileOutputStream(_file);
+            try {
+                _entries.store(stream, null);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to write negative cache " + _file, e);
+        }
+    }
+
+    private final File _file; ///< Fichero en el que se guarda la tabla
+    private final Properties _entries = new Properties(); ///< Fallos por estación y tipo de RSS
+}
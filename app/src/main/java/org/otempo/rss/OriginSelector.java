@@ -0,0 +1,187 @@
+package org.otempo.rss;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Elige a qué servidor (origen) pedir los RSS, de entre una lista ordenada: meteogalicia y los
+ * espejos que se configuren. De cada origen se lleva una media móvil de la latencia y de la tasa de
+ * errores; cada petición va al más rápido de los que están sanos, y si falla se pasa al siguiente.
+ * Un origen con demasiados errores se aparta durante un tiempo, y pasado ese tiempo se vuelve a
+ * probar. Los que todavía no se han probado van antes que los demás, en el orden de la lista; los
+ * que sólo han fallado (sin llegar a medirse) van después de los medidos, por su tasa de errores.
+ */
+public class OriginSelector {
+    /// Peso de cada nueva medida en las medias móviles
+    private static final double SMOOTHING = 0.3;
+    /// Tasa de errores a partir de la cual un origen deja de estar sano
+    private static final double MAX_ERROR_RATE = 0.5;
+    /// Orden entre orígenes sanos: los no probados primero, para medirlos cuanto antes
+    private static final int RANK_UNTRIED = 0;
+    /// ...luego los que han respondido alguna vez, por latencia
+    private static final int RANK_MEASURED = 1;
+    /// ...y al final los que sólo han fallado, por tasa de errores
+    private static final int RANK_FAILED = 2;
+
+    /**
+     * @param origins  Direcciones base de los orígenes, por orden de preferencia (al menos una)
+     * @param coolDown Tiempo que se aparta un origen que no está sano antes de volver a probarlo (en ms)
+     */
+    public OriginSelector(List<String> origins, long coolDown) {
+        if (origins.isEmpty()) {
+            throw new IllegalArgumentException("At least one origin is needed");
+        }
+        for (String url : origins) {
+            _origins.add(new Origin(url));
+        }
+        _coolDown = coolDown;
+    }
+
+    /**
+     * @param exclude Orígenes que ya han fallado en esta petición
+     * @return El origen más rápido de los que están sanos y no se han excluido; si ninguno está sano,
+     * el que antes vaya a volver a probarse. null si están todos excluidos
+     */
+    @Nullable
+    public synchronized String choose(Collection<String> exclude) {
+        long now = new Date().getTime();
+        Origin best = null;
+        Origin leastBad = null;
+        for (Origin origin : _origins) {
+            if (exclude.contains(origin.url)) {
+                continue;
+            }
+            if (origin.retryAt <= now) {
+                if (best == null || isBetter(origin, best)) {
+                    best = origin;
+                }
+            } else if (leastBad == null || origin.retryAt < leastBad.retryAt) {
+                leastBad = origin;
+            }
+        }
+        if (best != null) {
+            return best.url;
+        }
+        return leastBad != null ? leastBad.url : null;
+    }
+
+    /**
+     * Informa de que un origen ha respondido
+     *
+     * @param latency Lo que tardó en responder (en ms)
+     */
+    public synchronized void recordSuccess(String url, long latency) {
+        Origin origin = find(url);
+        if (origin == null) {
+            return;
+        }
+        origin.latency = origin.latency < 0 ? latency : SMOOTHING * latency + (1 - SMOOTHING) * origin.latency;
+        origin.errorRate = (1 - SMOOTHING) * origin.errorRate;
+        origin.retryAt = 0;
+    }
+
+    /**
+     * Informa de que un origen no ha respondido (error de red o fallo transitorio del servidor)
+     */
+    public synchronized void recordFailure(String url) {
+        Origin origin = find(url);
+        if (origin == null) {
+            return;
+        }
+        origin.errorRate = SMOOTHING + (1 - SMOOTHING) * origin.errorRate;
+        if (origin.errorRate >= MAX_ERROR_RATE) {
+            origin.retryAt = new Date().getTime() + _coolDown;
+        }
+    }
+
+    /**
+     * @return Media móvil de la latencia de un origen (en ms), o -1 si no se ha medido
+     */
+    public synchronized double getLatency(String url) {
+        Origin origin = find(url);
+        return origin != null ? origin.latency : -1;
+    }
+
+    /**
+     * @return Media móvil de la tasa de errores de un origen (entre 0 y 1)
+     */
+    public synchronized double getErrorRate(String url) {
+        Origin origin = find(url);
+        return origin != null ? origin.errorRate : 0;
+    }
+
+    /**
+     * @return true si el origen se puede usar ahora mismo
+     */
+    public synchronized boolean isHealthy(String url) {
+        Origin origin = find(url);
+        return origin != null && origin.retryAt <= new Date().getTime();
+    }
+
+    /**
+     * @return Las direcciones base de los orígenes, por orden de preferencia
+     */
+    public synchronized List<String> getOrigins() {
+        List<String> urls = new ArrayList<>();
+        for (Origin origin : _origins) {
+            urls.add(origin.url);
+        }
+        return urls;
+    }
+
+    /**
+     * @return true si conviene más pedir a a que a b, estando los dos sanos
+     */
+    private static boolean isBetter(Origin a, Origin b) {
+        int rankA = rank(a);
+        int rankB = rank(b);
+        if (rankA != rankB) {
+            return rankA < rankB;
+        }
+        if (rankA == RANK_MEASURED) {
+            return a.latency < b.latency;
+        }
+        return a.errorRate < b.errorRate;
+    }
+
+    /**
+     * @return RANK_UNTRIED, RANK_MEASURED o RANK_FAILED
+     */
+    private static int rank(Origin origin) {
+        if (origin.latency >= 0) {
+            return RANK_MEASURED;
+        }
+        return origin.errorRate > 0 ? RANK_FAILED : RANK_UNTRIED;
+    }
+
+    @Nullable
+    private Origin find(String url) {
+        for (Origin origin : _origins) {
+            if (origin.url.equals(url)) {
+                return origin;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Estado de un origen
+     */
+    private static class Origin {
+        Origin(String url) {
+            this.url = url;
+        }
+
+        final String url; ///< Dirección base
+        double latency = -1; ///< Media móvil de la latencia (en ms), o -1 si no se ha medido
+        double errorRate = 0; ///< Media móvil de la tasa de errores
+        long retryAt = 0; ///< Hasta cuándo está apartado (0 si está sano)
+    }
+
+    private final List<Origin> _origins = new ArrayList<>(); ///< Orígenes, por orden de preferencia
+    private final long _coolDown; ///< Tiempo que se aparta un origen que no está sano (en ms)
+}
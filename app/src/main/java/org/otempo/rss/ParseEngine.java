@@ -0,0 +1,31 @@
+package org.otempo.rss;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Motor que lee el XML de un RSS y va pasando sus elementos a un PredictionSAXHandler, que es quien
+ * construye las predicciones. Todos los motores dan las mismas predicciones; se elige uno con
+ * PredictionsParser.setParseEngine.
+ * Cada motor guarda lo que necesita por hilo, así que el mismo se puede usar desde varios hilos.
+ */
+public interface ParseEngine {
+    /// javax.xml.parsers.SAXParser, el de siempre
+    ParseEngine SAX = new SaxParseEngine();
+    /// XmlPullParser de Android
+    ParseEngine PULL = new PullParseEngine();
+    /// Lector específico para el XML de meteogalicia, que trabaja directamente sobre los bytes (con el RSS entero en memoria)
+    ParseEngine SCANNER = new ScannerParseEngine();
+
+    /**
+     * Lee un RSS entero
+     *
+     * @param in      El RSS
+     * @param handler Handler que recibe los elementos; al terminar tiene las predicciones
+     * @throws IOException  Si no se puede leer el RSS
+     * @throws SAXException Si el RSS no es XML válido
+     */
+    void parse(InputStream in, PredictionSAXHandler handler) throws IOException, SAXException;
+}
@@ -1,165 +1,233 @@
 package org.otempo.rss;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 
-import org.otempo.model.Station;
 import org.otempo.model.StationPrediction;
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
 public abstract class PredictionSAXHandler extends DefaultHandler {
+    protected static final int TAG_UNKNOWN = 0; ///< Etiqueta que no nos interesa
+    protected static final int TAG_ITEM = 1; ///< Fin de un item: se cierra la predicción actual
+    protected static final int TAG_MAX_TEMP = 2; ///< tMax
+    protected static final int TAG_MIN_TEMP = 3; ///< tMin
+    protected static final int TAG_CREATION_DATE = 4; ///< dataCreacion
+    protected static final int TAG_PREDICTION_DATE = 5; ///< dataPredicion
+    /// Las subclases numeran sus propias etiquetas a partir de aquí
+    protected static final int FIRST_SPECIFIC_TAG = 16;
 
-	PredictionSAXHandler(Station station, boolean clearPredictions) {
-		_station = station;
-		_clearPredictions  = clearPredictions;
-	}
+    /// Etiquetas comunes a los dos RSS, que cada subclase amplía con las suyas
+    protected static final TagTable COMMON_TAGS = new TagTable()
+            .add("item", TAG_ITEM)
+            .add("tMax", TAG_MAX_TEMP)
+            .add("tMin", TAG_MIN_TEMP)
+            .add("dataCreacion", TAG_CREATION_DATE)
+            .add("dataPredicion", TAG_PREDICTION_DATE);
 
-	@Nullable
-    final StationPrediction.WindState parseWindState(String stateString) {
-		try {
-			int state = Integer.valueOf(stateString);
-	    	// Lo convertimos a algo indexable (0..N)
-	    	state -= 299;
-	    	if (state < 0 || state >= StationPrediction.WindState.values().length) {
-	    		Log.w("OTempo", "Unable to parse wind " + stateString);
-	            return null; 
-	    	}
-	    	return StationPrediction.WindState.values()[state];
-		} catch (NumberFormatException e) {
-	        Log.w("OTempo", "NumberFormatException parsing wind state: ["+stateString+"]");
-	        return null;
-	    }
+    /**
+     * Vocabulario de etiquetas de un RSS: traduce cada nombre a un número una sola vez, para
+     * despachar cada elemento con un switch en lugar de compararlo con todos los nombres.
+     * Se rellena al cargar la clase y después sólo se consulta, así que se puede compartir entre hilos.
+     */
+    protected static final class TagTable {
+        TagTable() {
+            _ids = new HashMap<>();
+        }
+
+        /**
+         * @param base Tabla que se amplía (no se modifica)
+         */
+        TagTable(TagTable base) {
+            _ids = new HashMap<>(base._ids);
+            _names = base._names;
+        }
+
+        TagTable add(String name, int id) {
+            _ids.put(name, id);
+            _names = _ids.keySet().toArray(new String[_ids.size()]);
+            return this;
+        }
+
+        /**
+         * @return El número de la etiqueta, o TAG_UNKNOWN si no nos interesa
+         */
+        int lookup(String localName) {
+            Integer id = _ids.get(localName);
+            return id != null ? id : TAG_UNKNOWN;
+        }
+
+        /**
+         * Como lookup(String), pero con el nombre en un trozo de un array, para no crear un String
+         *
+         * @return El número de la etiqueta, o TAG_UNKNOWN si no nos interesa
+         */
+        int lookup(char[] chars, int start, int length) {
+            // Son pocos nombres y casi todos de longitud distinta: basta con recorrerlos
+            for (String name : _names) {
+                if (name.length() != length) {
+                    continue;
+                }
+                int i = 0;
+                while (i < length && name.charAt(i) == chars[start + i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return _ids.get(name);
+                }
+            }
+            return TAG_UNKNOWN;
+        }
+
+        private final Map<String, Integer> _ids; ///< Número de cada etiqueta, por nombre
+        private String[] _names = new String[0]; ///< Los mismos nombres, para recorrerlos
+    }
+
+    /**
+     * @param tags Etiquetas que entiende el handler
+     */
+    protected PredictionSAXHandler(TagTable tags) {
+        _tags = tags;
+    }
+
+	/**
+	 * @return Las predicciones parseadas, una vez terminado el documento
+	 */
+	final List<StationPrediction> getPredictions() {
+		return _predictions;
 	}
 
 	/**
-	 * Permite parsear una fecha mediante un formato dado
-	 * @param string Fecha como texto
-	 * @param format Formato de fecha esperado
-	 * @return Un objeto Calendar con la fecha
+	 * @return El estado del viento en el elemento actual, o null si no se conoce
 	 */
 	@Nullable
-    private Calendar parseDate(String string, SimpleDateFormat format) {
-	    if (format == null) return null;
-	    try {
-	        Calendar c = new GregorianCalendar();
-	        c.setTime(format.parse(string));
-	        return c;
-	    } catch (Exception e) {
-	        return null;
-	    }
+    final StationPrediction.WindState parseWindState() {
+		return FeedValues.parseWindState(_currentChars);
 	}
 
+    /**
+     * Deja el handler listo para parsear otro documento. Las predicciones del anterior no se
+     * tocan: quien las obtuvo con getPredictions se las queda.
+     */
     @Override
-    public final void startElement(String uri, String localName, String qName, Attributes attributes) {
-        if (localName.equals("dataPredicion")) {
-        	String format = attributes.getValue("formato");
-            _lastPredFormat = new SimpleDateFormat(format, SPANISH);
-        }
+    public final void startDocument() {
+        _predictions = new ArrayList<>();
         _currentChars.setLength(0);
+        _lastPredFormat = null;
+        resetCurrentPrediction();
+    }
+
+    @Override
+    public final void startElement(String uri, String localName, String qName, Attributes attributes) {
+        int tag = lookupTag(localName);
+        elementStarted(tag, tag == TAG_PREDICTION_DATE ? attributes.getValue("formato") : null);
     }
 
     @Override
     public final void characters(char[] ch, int start, int length) {
-        _currentChars.append(ch, start, length);
+        textFound(ch, start, length);
     }
     
     @Override
     public final void endElement(String uri, String localName, String qName) {
 		if (localName == null) return;
-        if (localName.equals("item")) {
-        	if (hasCurrentPrediction()) {
-                _predictions.add(getOrCreateCurrentPrediction());
-                resetCurrentPrediction();
-            }
-        }
-        if (localName.equals("rss")) {
-            _station.setPredictions(_predictions, _clearPredictions);
+        elementEnded(lookupTag(localName));
+    }
+
+    /* Los motores que no son SAX (ver ParseEngine) llaman directamente a estos métodos */
+
+    /**
+     * @return El número de una etiqueta (TAG_*), o TAG_UNKNOWN si no nos interesa
+     */
+    final int lookupTag(String localName) {
+        return _tags.lookup(localName);
+    }
+
+    /**
+     * Como lookupTag(String), con el nombre en un trozo de un array
+     */
+    final int lookupTag(char[] localName, int start, int length) {
+        return _tags.lookup(localName, start, length);
+    }
+
+    /**
+     * Empieza un elemento
+     *
+     * @param format Atributo formato, sólo para TAG_PREDICTION_DATE
+     */
+    final void elementStarted(int tag, @Nullable String format) {
+        if (tag == TAG_PREDICTION_DATE) {
+            _lastPredFormat = format;
         }
+        _currentChars.setLength(0);
+    }
+
+    /**
+     * Llega texto del elemento actual (puede llegar en varios trozos)
+     */
+    final void textFound(char[] ch, int start, int length) {
+        _currentChars.append(ch, start, length);
+    }
+
+    /**
+     * Termina un elemento
+     */
+    final void elementEnded(int tag) {
         try {
-            if (localName.equals("tMax")) {
-                getOrCreateCurrentPrediction().setMaxTemp(Integer.valueOf(getCurrentText()));
-            } else if (localName.equals("tMin")) {
-                getOrCreateCurrentPrediction().setMinTemp(Integer.valueOf(getCurrentText()));
-
-            } else if (localName.equals("dataCreacion")) {
-                getOrCreateCurrentPrediction().setCreationDate(parseDate(getCurrentText(), _creationDateformat));
-            } else if (localName.equals("dataPredicion")) {
-                getOrCreateCurrentPrediction().setDate(parseDate(getCurrentText(), _lastPredFormat));
-
-            } else {
-            	endElementSpecific(uri, localName);
+            switch (tag) {
+                case TAG_UNKNOWN:
+                    break;
+                case TAG_ITEM:
+                    if (hasCurrentPrediction()) {
+                        _predictions.add(getOrCreateCurrentPrediction());
+                        resetCurrentPrediction();
+                    }
+                    break;
+                case TAG_MAX_TEMP:
+                    getOrCreateCurrentPrediction().setMaxTemp(getCurrentInt());
+                    break;
+                case TAG_MIN_TEMP:
+                    getOrCreateCurrentPrediction().setMinTemp(getCurrentInt());
+                    break;
+                case TAG_CREATION_DATE:
+                    getOrCreateCurrentPrediction().setCreationDate(FeedDates.parse(_currentChars, FeedDates.CREATION_DATE_FORMAT));
+                    break;
+                case TAG_PREDICTION_DATE:
+                    getOrCreateCurrentPrediction().setDate(FeedDates.parse(_currentChars, _lastPredFormat));
+                    break;
+                default:
+                    endElementSpecific(tag);
+                    break;
             }
         } catch (NumberFormatException e) {
             Log.w("OTempo", "NumberFormatException parsing[" + getCurrentText() + "]");
         }
     }
 
-    // Process specific short/medium elements in the subclasses.
-    protected abstract void endElementSpecific(@NonNull String uri, @NonNull String localName);
+    // Process specific short/medium elements in the subclasses (tag >= FIRST_SPECIFIC_TAG).
+    protected abstract void endElementSpecific(int tag);
     
     // Returns currently accumulated text in the active element
     final String getCurrentText() { return _currentChars.toString(); }
+
+    // Decodes the text of the active element without creating a String
+    final int getCurrentInt() { return FeedValues.parseInt(_currentChars); }
+
+    final float getCurrentFloat() { return FeedValues.parseFloat(_currentChars); }
     
     /**
-	 * Permite parsear un estado del cielo
-	 * @param stateString Estado del cielo como texto
-	 * @return Devuelve el enumerado correspondiente
-	 * @TODO Se puede optimizar un poco mediante un HashMap, aunque hay otras optimizaciones más relevantes
-	 * @TODO(ryu): Añadir nuevos iconos de meteogalicia
+	 * @return El estado del cielo en el elemento actual, o null si no se conoce
 	 */
     @Nullable
-    final StationPrediction.SkyState parseSkyState(String stateString) {
-		StationPrediction.SkyState[] knownStates = {
-				/*101*/StationPrediction.SkyState.CLEAR,
-				/*102*/StationPrediction.SkyState.HIGH_CLOUDS,
-				/*103*/StationPrediction.SkyState.CLOUD_AND_CLEAR,
-				/*104*/StationPrediction.SkyState.MOSTLY_CLOUDY,
-				/*105*/StationPrediction.SkyState.CLOUDY,
-				/*106*/StationPrediction.SkyState.FOG,
-				/*107*/StationPrediction.SkyState.SHOWER,
-				/*108*/StationPrediction.SkyState.SHOWER,
-				/*109*/StationPrediction.SkyState.SHOWER_SNOW,
-				/*100*/StationPrediction.SkyState.DEW,
-				/*111*/StationPrediction.SkyState.RAIN,
-				/*112*/StationPrediction.SkyState.SNOW,
-				/*113*/StationPrediction.SkyState.STORM,
-				/*114*/StationPrediction.SkyState.HAZE,
-				/*115*/StationPrediction.SkyState.FOG_PATCHES,
-				/*116*/StationPrediction.SkyState.MEDIUM_CLOUDS,
-				/*117*/StationPrediction.SkyState.LIGHT_RAIN,
-				/*118*/StationPrediction.SkyState.LIGHT_SHOWER,
-				/*119*/StationPrediction.SkyState.LIGHT_STORM,
-				/*120*/StationPrediction.SkyState.SLEET,
-				/*121*/StationPrediction.SkyState.HAIL
-		};
-		try {
-			int state = Integer.valueOf(stateString);
-	    	if (state > 200) {
-	    		// No distinguimos entre estado diurno y nocturno a estas alturas, 
-	    		// eso se hace automáticamente más tarde.
-	    		state -= 100;
-	    	}
-	    	// Lo convertimos a algo indexable (0..N)
-	    	state -= 101;
-	    	if (state < 0 || state >= knownStates.length) {
-	    		Log.w("OTempo", "Unable to parse sky " + stateString);
-	            return null; 
-	    	}
-	    	return knownStates[state];
-		} catch (NumberFormatException e) {
-	        Log.w("OTempo", "NumberFormatException parsing sky state: ["+stateString+"]");
-	        return null;
-	    }
+    final StationPrediction.SkyState parseSkyState() {
+		return FeedValues.parseSkyState(_currentChars);
 	}
+
     // Obtiene la predicción actual, creándola si no existe
 	protected abstract StationPrediction getOrCreateCurrentPrediction();
 	
@@ -170,24 +238,16 @@ public abstract class PredictionSAXHandler extends DefaultHandler {
 	// Borra la predicción actual (usado al cerrar un item) 
 	protected abstract void resetCurrentPrediction();
 	
-	private static final Locale SPANISH = new Locale("es");
+    // Etiquetas que entiende el handler
+    private final TagTable _tags;
 	
     // Lista de predicciones de la estación
-    private final List<StationPrediction> _predictions = new ArrayList<>();
+    private List<StationPrediction> _predictions = new ArrayList<>();
 	
 	// Constructor de string para acumular texto a medida que nos va llegando
     private final StringBuilder _currentChars = new StringBuilder();
 
-	// Estación que se está parseando
-    private Station _station;
-
     // Último formato de fecha de predicción declarado en el RSS de meteogalicia 
-	private SimpleDateFormat _lastPredFormat = null;
-	
-    // Formato de fecha de creación (no se especifica en el RSS)
-    private static final SimpleDateFormat _creationDateformat =
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", SPANISH);
-
-    // Borrar las predicciones antes de cargar las nuevas?
-	private boolean _clearPredictions;
+	@Nullable
+	private String _lastPredFormat = null;
 }
\ No newline at end of file
@@ -3,59 +3,395 @@ package org.otempo.rss;
 import android.util.Log;
 
 import org.otempo.model.Station;
+import org.otempo.model.StationPrediction;
+import org.otempo.util.Nullness;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.Nullable;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 public class PredictionsParser {
+    /**
+     * Recibe el resultado de una revalidación en segundo plano (loadThenRevalidate). Se llama desde
+     * un hilo en segundo plano.
+     */
+    public interface RevalidationListener {
+        /**
+         * Las predicciones de la estación han cambiado, y hay que volver a mostrarlas
+         */
+        void onChanged(Station station);
+
+        /**
+         * No se pudo revalidar (sin conexión, por ej). La estación mantiene lo que tuviera
+         */
+        void onError(Station station, IOException e);
+    }
+
+    /**
+     * Carga enseguida las predicciones de la copia de la SD (si no estaban cargadas ya), y lanza en
+     * segundo plano una revalidación contra el servidor. Sólo se avisa al listener si las
+     * predicciones cambian de verdad, o si no se pudo revalidar.
+     * La carga de la SD se hace en el hilo que llama (normalmente el principal), sin tocar la red ni
+     * esperar por los hilos que descargan.
+     *
+     * @return true si la estación tiene predicciones que mostrar ya, sin esperar a la revalidación
+     */
+    public static boolean loadThenRevalidate(final Station station, final File cacheDir, final RevalidationListener listener) {
+        if (station.getPredictions().size() == 0) {
+            try {
+                parse(station, cacheDir, true);
+            } catch (IOException e) {
+                Log.d("OTempo", "No stored predictions for " + station.getName());
+            }
+        }
+        final boolean loaded = station.getPredictions().size() > 0;
+        final Calendar previousCreationDate = station.getLastCreationDate();
+        _revalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean updated = parse(station, cacheDir, false);
+                    // Releer el mismo RSS no es un cambio: se compara con la fecha de creación que ya se mostraba
+                    if (updated && (!loaded || !Nullness.equals(previousCreationDate, station.getLastCreationDate()))) {
+                        listener.onChanged(station);
+                    }
+                } catch (IOException e) {
+                    listener.onError(station, e);
+                }
+            }
+        });
+        return loaded;
+    }
+
     /**
      * Parsea la estación indicada.
      * TODO: StationCache.getStationRSS es una chapuza. Hace demasiadas cosas que no son evidentes.
      * Este método debería limitarse a parsear, y no andar mirando en la cache.
+     *
+     * @return true si se actualizaron las predicciones de la estación, false si no había cambios
+     */
+    public static boolean parse(final Station station, final File cacheDir, final boolean forceStorage) throws IOException {
+        return parse(station, cacheDir, forceStorage, true, true);
+    }
+
+    /**
+     * Parsea la estación indicada, refrescando sólo algunos de sus RSS (cada uno tiene su propia
+     * política de refresco). Los que no se refrescan se mantienen como estaban si ya se habían
+     * cargado, o se leen de la copia local si no.
+     *
+     * @param refreshShortTerm  Refrescar el RSS a corto plazo
+     * @param refreshMediumTerm Refrescar el RSS a medio plazo
+     * @return true si se actualizaron las predicciones de la estación, false si no había cambios
+     */
+    public static boolean parse(final Station station, final File cacheDir, final boolean forceStorage,
+                                final boolean refreshShortTerm, final boolean refreshMediumTerm) throws IOException {
+        final boolean loaded = station.getPredictions().size() > 0;
+        ParsedFeed shortTerm;
+        ParsedFeed mediumTerm;
+        if (forceStorage) {
+            // Leer de la SD es rápido y se hace desde el hilo principal (loadThenRevalidate, el widget):
+            // los dos en este hilo, sin esperar detrás de las descargas que ocupen _executor
+            shortTerm = loadUnlessLoaded(station, true, refreshShortTerm, true, loaded, cacheDir);
+            mediumTerm = loadUnlessLoaded(station, false, refreshMediumTerm, true, loaded, cacheDir);
+        } else {
+            // Los dos RSS a la vez: el de medio plazo en segundo plano y el de corto en este hilo
+            Future<ParsedFeed> pendingMediumTerm = _executor.submit(new Callable<ParsedFeed>() {
+                @Override
+                public ParsedFeed call() throws IOException {
+                    return loadUnlessLoaded(station, false, refreshMediumTerm, false, loaded, cacheDir);
+                }
+            });
+            shortTerm = null;
+            try {
+                shortTerm = loadUnlessLoaded(station, true, refreshShortTerm, false, loaded, cacheDir);
+            } finally {
+                if (shortTerm == null) {
+                    // La carga ya ha fallado: el de medio plazo no debe seguir descargando y guardando por su cuenta
+                    pendingMediumTerm.cancel(true);
+                }
+            }
+            mediumTerm = waitFor(pendingMediumTerm, station);
+        }
+        // Si ninguno de los dos ha cambiado (304, o el mismo contenido) y ya lo teníamos cargado, no hace falta parsear de nuevo
+        if (shortTerm.predictions == null && mediumTerm.predictions == null) {
+            Log.d("OTempo", "Station " + station.getName() + " not modified");
+            return false;
+        }
+        // Si sólo ha cambiado uno de los dos, el otro se relee de la copia local para reconstruir la lista
+        if (shortTerm.predictions == null) {
+            shortTerm = parseFeed(station, true, true, false, cacheDir);
+        }
+        if (mediumTerm.predictions == null) {
+            mediumTerm = parseFeed(station, false, true, false, cacheDir);
+        }
+        // Ambas listas a la vez, para que otro hilo que actualice la misma estación no las entremezcle
+        synchronized (station) {
+            station.setPredictions(shortTerm.predictions, true);
+            station.setPredictions(mediumTerm.predictions, false);
+        }
+        return true;
+    }
+
+    /**
+     * Carga uno de los RSS de una estación, salvo que no toque refrescarlo y ya esté cargado: entonces
+     * se queda como está
+     *
+     * @param refresh Refrescar el RSS (si no, se lee de la copia local si hace falta)
+     * @param loaded  La estación ya tenía predicciones
+     */
+    private static ParsedFeed loadUnlessLoaded(Station station, boolean shortTerm, boolean refresh, boolean forceStorage,
+                                               boolean loaded, File cacheDir) throws IOException {
+        if (!refresh && loaded) {
+            return new ParsedFeed(null);
+        }
+        return loadFeed(station, shortTerm, forceStorage || !refresh, loaded, cacheDir);
+    }
+
+    /**
+     * Espera a que termine de cargarse un RSS en segundo plano
+     *
+     * @return El RSS parseado, o el error que se produjo al cargarlo
      */
-    public static void parse(Station station, File cacheDir, boolean forceStorage) throws IOException {
+    private static ParsedFeed waitFor(Future<ParsedFeed> pending, Station station) throws IOException {
         try {
-            // Parsing short term
-            InputStream streamShortTerm = StationCache.getStationRSS(station.getId(), true, forceStorage, cacheDir);
-            if (streamShortTerm == null) {
-                throw new IOException("Station cache returned a NULL stream for short term");
-            }
-            PredictionSAXHandler shortTermHandler = new ShortTermSAXHandler(station);
-            SAXParserFactory spfShort = SAXParserFactory.newInstance();
-            SAXParser parserShort = spfShort.newSAXParser();
-            parserShort.parse(streamShortTerm, shortTermHandler);
-
-            // Parsing medium term
-            InputStream streamMediumTerm = StationCache.getStationRSS(station.getId(), false, forceStorage, cacheDir);
-            if (streamMediumTerm == null) {
-                throw new IOException("Station cache returned a NULL stream for medium term");
-            }
-            PredictionSAXHandler mediumTermHandler = new MediumTermSAXHandler(station);
-            SAXParserFactory spfMedium = SAXParserFactory.newInstance();
-            SAXParser parserMedium = spfMedium.newSAXParser();
-            parserMedium.parse(streamMediumTerm, mediumTermHandler);
+            return pending.get();
+        } catch (InterruptedException e) {
+            pending.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading station " + station.getName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Obtiene y parsea uno de los RSS de una estación. Si ya hay otro hilo descargando y parseando
+     * el mismo RSS, se espera por él y se comparte su resultado, en lugar de descargarlo otra vez.
+     * Las lecturas de la copia local no se comparten: no descargan ni escriben nada.
+     */
+    private static ParsedFeed loadFeed(final Station station, final boolean shortTerm, boolean forceStorage,
+                                       final boolean skipIfUnchanged, final File cacheDir) throws IOException {
+        if (forceStorage) {
+            return parseFeed(station, shortTerm, true, skipIfUnchanged, cacheDir);
+        }
+        // Quien no tiene nada en pantalla necesita las predicciones aunque no hayan cambiado: no puede
+        // compartir el resultado de quien se las salta (ParsedFeed(null))
+        String key = String.format(Locale.US, "%d_%s%s", station.getId(), shortTerm ? "short" : "medium",
+                skipIfUnchanged ? "_skip" : "");
+        return _inFlight.run(key, new SingleFlight.Call<ParsedFeed>() {
+            @Override
+            public ParsedFeed call() throws IOException {
+                return parseFeed(station, shortTerm, false, skipIfUnchanged, cacheDir);
+            }
+        });
+    }
+
+    /**
+     * Obtiene de la caché uno de los RSS de una estación, y lo parsea
+     *
+     * @param skipIfUnchanged No parsear si no ha cambiado: el servidor lo confirma, o llega idéntico a la copia
+     */
+    private static ParsedFeed parseFeed(Station station, boolean shortTerm, boolean forceStorage,
+                                        boolean skipIfUnchanged, File cacheDir) throws IOException {
+        CachedFeed feed = null;
+        try {
+            feed = StationCache.getStationRSS(station.getId(), shortTerm, forceStorage, cacheDir);
+            if (feed == null) {
+                throw new IOException("Station cache returned a NULL stream for " + (shortTerm ? "short term" : "medium term"));
+            }
+            // Lo que el servidor confirma que no ha cambiado (304) no hace falta parsearlo otra vez
+            if (skipIfUnchanged && feed.isUnchanged()) {
+                return new ParsedFeed(null);
+            }
+            Handlers handlers = getHandlers();
+            PredictionSAXHandler handler = shortTerm ? handlers.shortTerm : handlers.mediumTerm;
+            InputStream stream = feed.getStream();
+            boolean identical = false;
+            FeedDownload download = feed.getDownload();
+            if (skipIfUnchanged && download != null) {
+                // Ya hay algo en pantalla, así que no corre prisa: se lee entero y, si es idéntico a la
+                // copia (un 200 con otros ETag, por ej), ni se parsea
+                byte[] rss = download.readAll();
+                identical = StationCache.matchesStoredCopy(download, cacheDir);
+                stream = new ByteArrayInputStream(rss);
+            }
+            if (!identical) {
+                _engine.parse(stream, handler);
+            }
+            if (feed.isDownloaded()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Quien lo pidió ya no lo quiere (ver parse): no se guarda
+                    throw new InterruptedIOException("Interrupted while loading station " + station.getName());
+                }
+                // Sólo ahora, parseado sin errores, el RSS descargado pasa a ser la copia de la SD
+                identical = StationCache.commitDownload(feed, cacheDir);
+                if (identical && skipIfUnchanged) {
+                    // El mismo contenido que ya se mostraba: no hace falta reconstruir las predicciones
+                    return new ParsedFeed(null);
+                }
+            }
+            List<StationPrediction> predictions = handler.getPredictions();
+            recordPublication(predictions, shortTerm, cacheDir);
+            return new ParsedFeed(predictions);
         } catch (MalformedURLException e) {
             Log.e("OTempo", e.getMessage(), e);
             throw new IOException(e);
         } catch (IOException e) {
             Log.e("OTempo", e.getMessage(), e);
+            if (e instanceof InterruptedIOException && Thread.currentThread().isInterrupted()) {
+                // Nos han cancelado (ver parse). Un SocketTimeoutException también es un
+                // InterruptedIOException, pero eso es una red lenta: se usa la copia como con cualquier corte
+                throw e;
+            } else if (feed != null && feed.isDownloaded()) {
+                // La descarga se cortó a medias: se descarta y se usa la copia que hubiera en la SD
+                feed.close();
+                feed = null;
+                return parseFeed(station, shortTerm, true, false, cacheDir);
+            } else if (feed != null) {
+                // La copia de la SD no se puede leer (dañada, o comprimida con otro diccionario)
+                StationCache.removeCached(station.getId(), shortTerm, cacheDir);
+            }
             throw e;
-        } catch (ParserConfigurationException e) {
-            Log.e("OTempo", e.getMessage(), e);
-            throw new IOException(e);
         } catch (SAXException e) {
             Log.e("OTempo", "Error parsing station "+station.getName() + ": " + e.getMessage(), e);
-            // Remove bogus data
-            StationCache.removeCached(station.getId(), true, cacheDir);
-            StationCache.removeCached(station.getId(), false, cacheDir);
+            if (feed != null && feed.isDownloaded()) {
+                // Nos quedamos con la copia anterior, y no se vuelve a descargar durante un tiempo
+                StationCache.rejectDownload(feed, e.getMessage(), cacheDir);
+            } else {
+                // Remove bogus data
+                StationCache.removeCached(station.getId(), shortTerm, cacheDir);
+            }
             throw new IOException(e);
+        } finally {
+            if (feed != null) {
+                feed.close();
+            }
         }
     }
+
+    /**
+     * Apunta cuándo se publicó un RSS, para aprender las horas a las que publica meteogalicia
+     */
+    private static void recordPublication(List<StationPrediction> predictions, boolean shortTerm, File cacheDir) {
+        long created = StationPrediction.UNKNOWN_DATE;
+        for (StationPrediction prediction : predictions) {
+            created = Math.max(created, prediction.getCreationDateMillis());
+        }
+        if (created != StationPrediction.UNKNOWN_DATE) {
+            StationCache.getPublicationSchedule(cacheDir).record(shortTerm, FeedDates.creationDateToUtc(created));
+        }
+    }
+
+    /**
+     * Elige el motor con el que se lee el XML de los RSS. Todos dan las mismas predicciones.
+     *
+     * @param engine Uno de ParseEngine.SAX, PULL o SCANNER
+     */
+    public static void setParseEngine(ParseEngine engine) {
+        _engine = engine;
+    }
+
+    /**
+     * @return El motor con el que se lee el XML de los RSS
+     */
+    public static ParseEngine getParseEngine() {
+        return _engine;
+    }
+
+    /**
+     * @return Los handlers de este hilo, creándolos la primera vez
+     */
+    private static Handlers getHandlers() {
+        Handlers handlers = _handlers.get();
+        if (handlers == null) {
+            handlers = new Handlers();
+            _handlers.set(handlers);
+        }
+        return handlers;
+    }
+
+    /**
+     * Handlers de un hilo, que se reutilizan para todos los RSS que parsea (se reinician solos al
+     * empezar cada documento). El parser de cada hilo lo guarda el motor.
+     */
+    private static class Handlers {
+        final ShortTermSAXHandler shortTerm = new ShortTermSAXHandler();
+        final MediumTermSAXHandler mediumTerm = new MediumTermSAXHandler();
+    }
+
+    /**
+     * Resultado de parsear uno de los RSS de una estación
+     */
+    private static class ParsedFeed {
+        ParsedFeed(@Nullable List<StationPrediction> predictions) {
+            this.predictions = predictions;
+        }
+
+        /// Predicciones parseadas, o null si no se parseó porque no había cambiado
+        @Nullable
+        final List<StationPrediction> predictions;
+    }
+
+    /// Motor con el que se lee el XML (ver setParseEngine). El lector específico (SCANNER) parsea
+    /// más rápido, pero lee el RSS entero en memoria antes de empezar, y aún no se ha medido en un
+    /// dispositivo con descargas reales (ver ParseEngineBenchmark); hasta entonces, SAX
+    private static volatile ParseEngine _engine = ParseEngine.SAX;
+    /// Handlers de cada hilo
+    private static final ThreadLocal<Handlers> _handlers = new ThreadLocal<>();
+    /// Descargas y parseos en marcha, por estación y tipo de RSS
+    private static final SingleFlight<String, ParsedFeed> _inFlight = new SingleFlight<>();
+    /// Hilos para cargar los RSS de medio plazo en paralelo con los de corto plazo. Se liberan si no se usan.
+    private static final ThreadPoolExecutor _executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger _count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OTempo-feed-" + _count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /// Revalidaciones en segundo plano, de una en una (cada una ya usa _executor para cargar sus dos RSS)
+    private static final Executor _revalidator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OTempo-revalidate");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        _executor.allowCoreThreadTimeOut(true);
+    }
 }
@@ -0,0 +1,259 @@
+package org.otempo.rss;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Aprende a qué horas publica meteogalicia cada tipo de RSS, a partir de las fechas de creación
+ * (dataCreacion) de las predicciones que se van parseando, para actualizar justo después de cada
+ * publicación en lugar de preguntar cada cierto tiempo a ciegas.
+ * Las publicaciones se agrupan por hora del día: una hora a la que se ha visto publicar al menos
+ * MIN_SLOT_OBSERVATIONS veces se considera una hora de publicación. Mientras no haya ninguna, se
+ * vuelve al periodo fijo de actualización.
+ * Se guarda en un fichero para que sobreviva entre ejecuciones de los workers.
+ */
+public class PublicationSchedule {
+    private static final int MAX_OBSERVATIONS = 30; ///< Publicaciones que se recuerdan de cada tipo de RSS
+    private static final long SAME_PUBLICATION = 1000 * 60 * 30; ///< Fechas de creación más cercanas que esto son la misma publicación (en ms)
+    private static final int SLOT_WIDTH = 60; ///< Publicaciones a menos de estos minutos de distancia son la misma hora de publicación
+    private static final int MIN_SLOT_OBSERVATIONS = 2; ///< Veces que hay que ver una hora de publicación para fiarse de ella
+    private static final long MARGIN = 1000 * 60 * 15; ///< Cuánto después de la hora esperada se actualiza (en ms)
+    private static final long LATE_RETRY = 1000 * 60 * 30; ///< Si una publicación se retrasa, cada cuánto se vuelve a mirar (en ms)
+    private static final long LATE_RECHECK = 1000 * 60 * 5; ///< Si una publicación se retrasa, edad a partir de la cual se vuelve a preguntar por una copia (en ms)
+    private static final long LATE_GIVE_UP = 1000 * 3600 * 6; ///< A partir de este retraso se da la publicación por perdida (en ms)
+    private static final long DAY = 1000 * 3600 * 24;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * @param file Fichero en el que se guardan las publicaciones vistas
+     */
+    PublicationSchedule(File file) {
+        _file = file;
+        load();
+    }
+
+    /**
+     * Apunta la fecha de creación de un RSS recién parseado. Ver la misma publicación varias veces
+     * (varias estaciones, o releer la copia local) no cuenta más de una vez.
+     *
+     * @param created Fecha de creación (en ms)
+     */
+    public synchronized void record(boolean shortTerm, long created) {
+        List<Long> observations = getObservations(shortTerm);
+        for (long observed : observations) {
+            if (Math.abs(observed - created) < SAME_PUBLICATION) {
+                return;
+            }
+        }
+        observations.add(created);
+        Collections.sort(observations);
+        while (observations.size() > MAX_OBSERVATIONS) {
+            observations.remove(0);
+        }
+        StringBuilder value = new StringBuilder();
+        for (long observed : observations) {
+            value.append(value.length() == 0 ? "" : ",").append(observed);
+        }
+        _observations.setProperty(makeKey(shortTerm), value.toString());
+        save();
+    }
+
+    /**
+     * Calcula cuándo conviene actualizar un tipo de RSS: poco después de la próxima publicación
+     * esperada, o enseguida (y cada poco) si la última publicación esperada todavía no ha aparecido.
+     *
+     * @param now            Instante actual (en ms)
+     * @param fallbackPeriod Periodo a usar si todavía no se conocen las horas de publicación (en ms)
+     * @return Instante (en ms) en que actualizar
+     */
+    public synchronized long getNextSync(boolean shortTerm, long now, long fallbackPeriod) {
+        List<Long> observations = getObservations(shortTerm);
+        List<Integer> slots = findSlots(observations);
+        if (slots.isEmpty()) {
+            return now + fallbackPeriod;
+        }
+        long previous = getPreviousSlot(slots, now);
+        if (isMissing(observations, previous, now)) {
+            if (now < previous + MARGIN) {
+                return previous + MARGIN;
+            }
+            // Se está retrasando, así que se vuelve a mirar dentro de poco
+            return now + LATE_RETRY;
+        }
+        long next = Long.MAX_VALUE;
+        for (int slot : slots) {
+            long today = atMinuteOfDay(now, slot);
+            next = Math.min(next, today > now ? today : today + DAY);
+        }
+        return next + MARGIN;
+    }
+
+    /**
+     * Una copia validada antes de la última publicación esperada ya no sirve, aunque el servidor
+     * dijera que duraba más. Mientras esa publicación se retrasa, se vuelve a preguntar cada poco.
+     *
+     * @param now Instante actual (en ms)
+     * @return Instante (en ms) antes del cual una copia ya no se considera fresca, o 0 si todavía no
+     * se conocen las horas de publicación
+     */
+    public synchronized long getStaleBefore(boolean shortTerm, long now) {
+        List<Long> observations = getObservations(shortTerm);
+        List<Integer> slots = findSlots(observations);
+        if (slots.isEmpty()) {
+            return 0;
+        }
+        long previous = getPreviousSlot(slots, now);
+        if (isMissing(observations, previous, now)) {
+            return Math.max(previous, now - LATE_RECHECK);
+        }
+        return previous;
+    }
+
+    /**
+     * @return La última hora de publicación que ya ha pasado (en ms)
+     */
+    private static long getPreviousSlot(List<Integer> slots, long now) {
+        long previous = Long.MIN_VALUE;
+        for (int slot : slots) {
+            long today = atMinuteOfDay(now, slot);
+            previous = Math.max(previous, today <= now ? today : today - DAY);
+        }
+        return previous;
+    }
+
+    /**
+     * @return true si todavía no se ha visto la publicación esperada a la hora dada, y no se ha dado por perdida
+     */
+    private static boolean isMissing(List<Long> observations, long expected, long now) {
+        long latest = observations.get(observations.size() - 1);
+        return latest < expected - SLOT_WIDTH * 60 * 1000 && now - expected < LATE_GIVE_UP;
+    }
+
+    /**
+     * @return Las horas de publicación (minuto del día) de las que nos podemos fiar, ordenadas
+     */
+    private static List<Integer> findSlots(List<Long> observations) {
+        List<Integer> minutes = new ArrayList<>();
+        Calendar calendar = Calendar.getInstance();
+        for (long observed : observations) {
+            calendar.setTimeInMillis(observed);
+            minutes.add(calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE));
+        }
+        Collections.sort(minutes);
+        // El día da la vuelta: se empieza a agrupar justo después del mayor hueco entre publicaciones,
+        // para que una hora de publicación alrededor de medianoche (23:50 y 00:10) no quede partida en dos
+        int first = 0;
+        int widestGap = -1;
+        for (int i = 0; i < minutes.size(); i++) {
+            int previous = i > 0 ? minutes.get(i - 1) : minutes.get(minutes.size() - 1) - MINUTES_PER_DAY;
+            if (minutes.get(i) - previous > widestGap) {
+                widestGap = minutes.get(i) - previous;
+                first = i;
+            }
+        }
+        List<Integer> unwrapped = new ArrayList<>();
+        for (int i = 0; i < minutes.size(); i++) {
+            int index = (first + i) % minutes.size();
+            unwrapped.add(minutes.get(index) + (index < first ? MINUTES_PER_DAY : 0));
+        }
+        List<Integer> slots = new ArrayList<>();
+        int start = 0;
+        while (start < unwrapped.size()) {
+            int end = start;
+            while (end < unwrapped.size() && unwrapped.get(end) - unwrapped.get(start) < SLOT_WIDTH) {
+                end++;
+            }
+            if (end - start >= MIN_SLOT_OBSERVATIONS) {
+                // La más tardía del grupo, para no llegar antes de tiempo
+                slots.add(unwrapped.get(end - 1) % MINUTES_PER_DAY);
+            }
+            start = end;
+        }
+        Collections.sort(slots);
+        return slots;
+    }
+
+    /**
+     * @return El instante del mismo día que when a un minuto del día dado
+     */
+    private static long atMinuteOfDay(long when, int minuteOfDay) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(when);
+        calendar.set(Calendar.HOUR_OF_DAY, minuteOfDay / 60);
+        calendar.set(Calendar.MINUTE, minuteOfDay % 60);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private List<Long> getObservations(boolean shortTerm) {
+        List<Long> observations = new ArrayList<>();
+        String value = _observations.getProperty(makeKey(shortTerm), "");
+        for (String observed : value.split(",")) {
+            if (observed.length() == 0) {
+                continue;
+            }
+            try {
+                observations.add(Long.parseLong(observed));
+            } catch (NumberFormatException e) {
+                Log.w("OTempo", "Bad publication time " + observed);
+            }
+        }
+        Collections.sort(observations);
+        return observations;
+    }
+
+    private static String makeKey(boolean shortTerm) {
+        return shortTerm ? "short" : "medium";
+    }
+
+    /**
+     * Lee las publicaciones desde el fichero
+     */
+    private void load() {
+        if (!_file.exists()) {
+            return;
+        }
+        try {
+            InputStream stream = new FileInputStream(_file);
+            try {
+                _observations.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to read publication schedule " + _file, e);
+        }
+    }
+
+    /**
+     * Guarda las publicaciones en el fichero
+     */
+    private void save() {
+        try {
+            _file.getParentFile().mkdirs();
+            OutputStream stream = new FileOutputStream(_file);
+            try {
+                _observations.store(stream, null);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to write publication schedule " + _file, e);
+        }
+    }
+
+    private final File _file; ///< Fichero en el que se guardan las publicaciones
+    private final Properties _observations = new Properties(); ///< Fechas de creación vistas, por tipo de RSS
+}
@@ -0,0 +1,64 @@
+package org.otempo.rss;
+
+import android.util.Xml;
+
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Motor sobre el XmlPullParser de Android. Cada hilo reutiliza su parser: setInput lo reinicia.
+ */
+class PullParseEngine implements ParseEngine {
+    @Override
+    public void parse(InputStream in, PredictionSAXHandler handler) throws IOException, SAXException {
+        try {
+            XmlPullParser parser = _parser.get();
+            if (parser == null) {
+                parser = newParser();
+                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+                _parser.set(parser);
+            }
+            // La codificación la decide el parser a partir de la declaración XML
+            parser.setInput(in, null);
+            int[] textRange = new int[2];
+            // kxml2 deja pasar un documento vacío y lo que venga tras el elemento raíz, que para SAX son errores
+            boolean rootEnded = false;
+            handler.startDocument();
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (rootEnded && (event != XmlPullParser.TEXT || !parser.isWhitespace())) {
+                    throw new SAXException("Content after the root element at line " + parser.getLineNumber());
+                }
+                if (event == XmlPullParser.START_TAG) {
+                    int tag = handler.lookupTag(parser.getName());
+                    handler.elementStarted(tag, tag == PredictionSAXHandler.TAG_PREDICTION_DATE
+                            ? parser.getAttributeValue(null, "formato") : null);
+                } else if (event == XmlPullParser.END_TAG) {
+                    handler.elementEnded(handler.lookupTag(parser.getName()));
+                    rootEnded = parser.getDepth() == 1;
+                } else if (event == XmlPullParser.TEXT && !rootEnded) {
+                    char[] text = parser.getTextCharacters(textRange);
+                    handler.textFound(text, textRange[0], textRange[1]);
+                }
+            }
+            if (!rootEnded) {
+                throw new SAXException("No root element");
+            }
+        } catch (XmlPullParserException e) {
+            throw new SAXException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Un parser nuevo. Fuera de Android (en las pruebas) se sustituye por uno que no dependa de android.util.Xml
+     */
+    XmlPullParser newParser() {
+        return Xml.newPullParser();
+    }
+
+    private final ThreadLocal<XmlPullParser> _parser = new ThreadLocal<>(); ///< Parser de cada hilo
+}
@@ -0,0 +1,72 @@
+package org.otempo.rss;
+
+/**
+ * Cómo se refresca cada tipo de RSS. El de medio plazo cambia mucho menos que el de corto, así que
+ * puede durar más en la caché, actualizarse menos a menudo y esperar a una red sin límite de datos.
+ */
+public class RefreshPolicy {
+    /// RSS a corto plazo: cambia varias veces al día
+    public static final RefreshPolicy SHORT_TERM = new RefreshPolicy(1000 * 60 * 15, 1000 * 3600 * 12, false, 1);
+    /// RSS a medio plazo: cambia como mucho un par de veces al día
+    public static final RefreshPolicy MEDIUM_TERM = new RefreshPolicy(1000 * 3600 * 3, 1000 * 3600 * 24, true, 4);
+
+    /**
+     * @param minAge            Mínima edad que se permite a una copia antes de volver a preguntar al servidor (en ms)
+     * @param maxAge            Máxima edad que se permite a una copia aunque el servidor diga que dura más (en ms)
+     * @param requiresUnmetered Sólo descargarlo por una red sin límite de datos (salvo que no haya copia, o que supere maxAge)
+     * @param periodFactor      Cada cuántos periodos de actualización se actualiza en segundo plano
+     */
+    public RefreshPolicy(long minAge, long maxAge, boolean requiresUnmetered, int periodFactor) {
+        _minAge = minAge;
+        _maxAge = Math.max(minAge, maxAge);
+        _requiresUnmetered = requiresUnmetered;
+        _periodFactor = Math.max(1, periodFactor);
+    }
+
+    /**
+     * @return La misma política con otras edades mínima y máxima
+     */
+    public RefreshPolicy withAgeBounds(long minAge, long maxAge) {
+        return new RefreshPolicy(minAge, maxAge, _requiresUnmetered, _periodFactor);
+    }
+
+    /**
+     * @return Mínima edad que se permite a una copia antes de volver a preguntar al servidor (en ms)
+     */
+    public long getMinAge() {
+        return _minAge;
+    }
+
+    /**
+     * @return Máxima edad que se permite a una copia aunque el servidor diga que dura más (en ms)
+     */
+    public long getMaxAge() {
+        return _maxAge;
+    }
+
+    /**
+     * @return true si sólo se debe descargar por una red sin límite de datos (salvo que no haya copia)
+     */
+    public boolean requiresUnmetered() {
+        return _requiresUnmetered;
+    }
+
+    /**
+     * @return Cada cuántos periodos de actualización se actualiza en segundo plano
+     */
+    public int getPeriodFactor() {
+        return _periodFactor;
+    }
+
+    /**
+     * @return Una edad acotada entre la mínima y la máxima
+     */
+    long clampAge(long age) {
+        return Math.min(Math.max(age, _minAge), _maxAge);
+    }
+
+    private final long _minAge; ///< Mínima edad de una copia (en ms)
+    private final long _maxAge; ///< Máxima edad de una copia (en ms)
+    private final boolean _requiresUnmetered; ///< Sólo por una red sin límite de datos
+    private final int _periodFactor; ///< Cada cuántos periodos de actualización se actualiza
+}
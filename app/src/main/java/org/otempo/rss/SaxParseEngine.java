@@ -0,0 +1,40 @@
+package org.otempo.rss;
+
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Motor sobre javax.xml.parsers.SAXParser. Crear un parser es caro, así que cada hilo reutiliza el suyo.
+ */
+class SaxParseEngine implements ParseEngine {
+    SaxParseEngine() {
+        // Los handlers usan localName, y el RSS no trae DTD que validar
+        _factory.setNamespaceAware(true);
+        _factory.setValidating(false);
+    }
+
+    @Override
+    public void parse(InputStream in, PredictionSAXHandler handler) throws IOException, SAXException {
+        SAXParser parser = _parser.get();
+        if (parser == null) {
+            try {
+                parser = _factory.newSAXParser();
+            } catch (ParserConfigurationException e) {
+                // Android siempre trae un parser SAX que cumple esta configuración
+                throw new IllegalStateException("No SAX parser available", e);
+            }
+            _parser.set(parser);
+        }
+        parser.reset();
+        parser.parse(in, handler);
+    }
+
+    private final SAXParserFactory _factory = SAXParserFactory.newInstance(); ///< Fábrica de parsers, configurada una sola vez
+    private final ThreadLocal<SAXParser> _parser = new ThreadLocal<>(); ///< Parser de cada hilo
+}
@@ -0,0 +1,552 @@
+package org.otempo.rss;
+
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Motor específico para el XML de meteogalicia: lee el RSS entero en un buffer de bytes y lo recorre
+ * a mano, sin crear objetos por elemento (sólo el atributo formato, cuando cambia).
+ *
+ * Entiende lo que usa meteogalicia y algo más: UTF-8 o ISO-8859-1, espacios de nombres (se queda
+ * con el nombre local), comentarios, instrucciones de proceso, CDATA, las entidades predefinidas y
+ * las referencias numéricas. Comprueba que las etiquetas estén bien anidadas y que el documento no
+ * acabe a medias, igual que SAX. Lo que no entiende (otra codificación, o un DOCTYPE, que podría
+ * declarar entidades) se lo pasa al motor SAX.
+ */
+class ScannerParseEngine implements ParseEngine {
+    private static final int INITIAL_BUFFER = 32 * 1024; ///< Tamaño inicial del buffer de bytes de cada hilo
+    private static final char[] FORMAT_ATTRIBUTE = "formato".toCharArray(); ///< Único atributo que interesa
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final char[] AMP = "amp".toCharArray();
+    private static final char[] LT = "lt".toCharArray();
+    private static final char[] GT = "gt".toCharArray();
+    private static final char[] QUOT = "quot".toCharArray();
+    private static final char[] APOS = "apos".toCharArray();
+
+    /**
+     * Buffers de un hilo, que se reutilizan de un RSS a otro
+     */
+    private static class Buffers {
+        byte[] bytes = new byte[INITIAL_BUFFER]; ///< El RSS
+        char[] chars = new char[1024]; ///< Texto decodificado
+        int[] openStarts = new int[16]; ///< Inicio (en bytes) del nombre de cada elemento abierto
+        int[] openLengths = new int[16]; ///< Longitud del nombre de cada elemento abierto
+        @Nullable
+        String lastFormat = null; ///< Último atributo formato, para no crear otro String si se repite
+    }
+
+    @Override
+    public void parse(InputStream in, PredictionSAXHandler handler) throws IOException, SAXException {
+        Buffers buffers = _buffers.get();
+        if (buffers == null) {
+            buffers = new Buffers();
+            _buffers.set(buffers);
+        }
+        int length = readFully(in, buffers);
+        new Scanner(buffers, length, handler).run();
+    }
+
+    /**
+     * Lee todo el RSS en el buffer del hilo, agrandándolo si hace falta
+     *
+     * @return Bytes leídos
+     */
+    private static int readFully(InputStream in, Buffers buffers) throws IOException {
+        int length = 0;
+        int n;
+        while ((n = in.read(buffers.bytes, length, buffers.bytes.length - length)) != -1) {
+            length += n;
+            if (length == buffers.bytes.length) {
+                byte[] bigger = new byte[buffers.bytes.length * 2];
+                System.arraycopy(buffers.bytes, 0, bigger, 0, length);
+                buffers.bytes = bigger;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * El recorrido de un RSS concreto
+     */
+    private static class Scanner {
+        Scanner(Buffers buffers, int length, PredictionSAXHandler handler) {
+            _buffers = buffers;
+            _bytes = buffers.bytes;
+            _length = length;
+            _handler = handler;
+        }
+
+        void run() throws IOException, SAXException {
+            // Marca de orden de bytes de UTF-8
+            if (_length >= 3 && (_bytes[0] & 0xFF) == 0xEF && (_bytes[1] & 0xFF) == 0xBB && (_bytes[2] & 0xFF) == 0xBF) {
+                _position = 3;
+            }
+            if (!readDeclaration()) {
+                parseWithSax();
+                return;
+            }
+            _handler.startDocument();
+            boolean rootSeen = false;
+            while (_position < _length) {
+                if (_bytes[_position] != '<') {
+                    int start = _position;
+                    int end = indexOf((byte) '<', start);
+                    if (_depth > 0) {
+                        int chars = decodeText(start, end, false);
+                        _handler.textFound(_buffers.chars, 0, chars);
+                    } else {
+                        checkWhitespace(start, end);
+                    }
+                    _position = end;
+                } else if (startsWith("<?")) {
+                    _position = skipPast("?>", _position + 2);
+                } else if (startsWith("<!--")) {
+                    _position = skipPast("-->", _position + 4);
+                } else if (startsWith("<![CDATA[")) {
+                    if (_depth == 0) {
+                        throw new SAXException("CDATA outside the root element");
+                    }
+                    int start = _position + 9;
+                    int end = indexOf("]]>", start);
+                    if (end < 0) {
+                        throw new SAXException("Premature end of file");
+                    }
+                    int chars = decodeText(start, end, true);
+                    _handler.textFound(_buffers.chars, 0, chars);
+                    _position = end + 3;
+                } else if (startsWith("<!DOCTYPE") && !rootSeen) {
+                    // Podría declarar entidades, que aquí no se entienden
+                    parseWithSax();
+                    return;
+                } else if (startsWith("<!")) {
+                    throw new SAXException("Unexpected markup");
+                } else if (startsWith("</")) {
+                    readEndTag();
+                } else {
+                    if (_depth == 0 && rootSeen) {
+                        throw new SAXException("Markup after the root element");
+                    }
+                    rootSeen = true;
+                    readStartTag();
+                }
+            }
+            if (_depth > 0 || !rootSeen) {
+                throw new SAXException("Premature end of file");
+            }
+        }
+
+        /**
+         * Pasa el RSS entero al motor SAX (que vuelve a empezar el documento en el handler)
+         */
+        private void parseWithSax() throws IOException, SAXException {
+            ParseEngine.SAX.parse(new ByteArrayInputStream(_bytes, 0, _length), _handler);
+        }
+
+        /**
+         * Lee la declaración XML, si la hay
+         *
+         * @return false si declara una codificación que no se entiende
+         */
+        private boolean readDeclaration() {
+            if (!startsWith("<?xml")) {
+                return true;
+            }
+            int end = indexOf("?>", _position);
+            int encoding = indexOf("encoding", _position);
+            if (encoding < 0 || encoding > end) {
+                return true;
+            }
+            int quote = encoding + 8;
+            while (quote < end && _bytes[quote] != '"' && _bytes[quote] != '\'') {
+                quote++;
+            }
+            int close = quote + 1;
+            while (close < end && _bytes[close] != _bytes[quote]) {
+                close++;
+            }
+            String name = new String(_bytes, quote + 1, Math.max(0, close - quote - 1), ISO_8859_1).toUpperCase(Locale.US);
+            if (name.equals("ISO-8859-1") || name.equals("LATIN1")) {
+                _latin1 = true;
+                return true;
+            }
+            return name.equals("UTF-8") || name.equals("UTF8") || name.equals("US-ASCII");
+        }
+
+        private void readStartTag() throws SAXException {
+            int nameStart = _position + 1;
+            int nameEnd = readName(nameStart);
+            int tag = lookupLocalName(nameStart, nameEnd);
+            String format = null;
+            int p = nameEnd;
+            boolean empty = false;
+            while (true) {
+                p = skipWhitespace(p);
+                if (p >= _length) {
+                    throw new SAXException("Premature end of file");
+                }
+                if (_bytes[p] == '>') {
+                    p++;
+                    break;
+                }
+                if (_bytes[p] == '/' && p + 1 < _length && _bytes[p + 1] == '>') {
+                    p += 2;
+                    empty = true;
+                    break;
+                }
+                // Un atributo: nombre = "valor"
+                int attributeStart = p;
+                int attributeEnd = readName(attributeStart);
+                p = skipWhitespace(attributeEnd);
+                if (p >= _length || _bytes[p] != '=') {
+                    throw new SAXException("Attribute without value");
+                }
+                p = skipWhitespace(p + 1);
+                if (p >= _length || (_bytes[p] != '"' && _bytes[p] != '\'')) {
+                    throw new SAXException("Attribute value must be quoted");
+                }
+                byte quote = _bytes[p];
+                int valueStart = p + 1;
+                int valueEnd = indexOf(quote, valueStart);
+                if (valueEnd >= _length) {
+                    throw new SAXException("Premature end of file");
+                }
+                if (tag == PredictionSAXHandler.TAG_PREDICTION_DATE && equalsAscii(attributeStart, attributeEnd, FORMAT_ATTRIBUTE)) {
+                    format = toFormat(decodeAttribute(valueStart, valueEnd));
+                }
+                p = valueEnd + 1;
+            }
+            _handler.elementStarted(tag, format);
+            if (empty) {
+                _handler.elementEnded(tag);
+            } else {
+                push(nameStart, nameEnd - nameStart);
+            }
+            _position = p;
+        }
+
+        private void readEndTag() throws SAXException {
+            int nameStart = _position + 2;
+            int nameEnd = readName(nameStart);
+            int p = skipWhitespace(nameEnd);
+            if (p >= _length || _bytes[p] != '>') {
+                throw new SAXException("Bad end tag");
+            }
+            if (_depth == 0) {
+                throw new SAXException("End tag without start tag");
+            }
+            _depth--;
+            int openStart = _buffers.openStarts[_depth];
+            int openLength = _buffers.openLengths[_depth];
+            if (openLength != nameEnd - nameStart || !regionMatches(openStart, nameStart, openLength)) {
+                throw new SAXException("Mismatched end tag");
+            }
+            _handler.elementEnded(lookupLocalName(nameStart, nameEnd));
+            _position = p + 1;
+        }
+
+        /**
+         * @return El número de etiqueta del nombre local (lo que va tras los dos puntos)
+         */
+        private int lookupLocalName(int start, int end) {
+            int localStart = start;
+            for (int i = start; i < end; i++) {
+                if (_bytes[i] == ':') {
+                    localStart = i + 1;
+                }
+            }
+            int length = end - localStart;
+            char[] chars = ensureChars(length);
+            for (int i = 0; i < length; i++) {
+                int b = _bytes[localStart + i];
+                if (b < 0) {
+                    // Ninguna etiqueta que nos interese tiene caracteres no ASCII
+                    return PredictionSAXHandler.TAG_UNKNOWN;
+                }
+                chars[i] = (char) b;
+            }
+            return _handler.lookupTag(chars, 0, length);
+        }
+
+        /**
+         * @return El formato como String, reutilizando el anterior si es el mismo
+         */
+        private String toFormat(int length) {
+            String last = _buffers.lastFormat;
+            if (last != null && last.length() == length) {
+                int i = 0;
+                while (i < length && last.charAt(i) == _buffers.chars[i]) {
+                    i++;
+                }
+                if (i == length) {
+                    return last;
+                }
+            }
+            last = new String(_buffers.chars, 0, length);
+            _buffers.lastFormat = last;
+            return last;
+        }
+
+        private int decodeAttribute(int start, int end) throws SAXException {
+            int length = decodeText(start, end, false);
+            // Los valores de atributos normalizan los saltos de línea y tabuladores a espacios
+            char[] chars = _buffers.chars;
+            for (int i = 0; i < length; i++) {
+                if (chars[i] == '\n' || chars[i] == '\t') {
+                    chars[i] = ' ';
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Decodifica un trozo de texto al buffer de caracteres: UTF-8 (o ISO-8859-1), entidades y
+         * saltos de línea (\r\n y \r pasan a ser \n, como en cualquier parser XML)
+         *
+         * @param raw Sin entidades (CDATA)
+         * @return Caracteres decodificados
+         */
+        private int decodeText(int start, int end, boolean raw) throws SAXException {
+            char[] chars = ensureChars(end - start);
+            int length = 0;
+            int p = start;
+            while (p < end) {
+                int b = _bytes[p] & 0xFF;
+                if (b == '&' && !raw) {
+                    int semicolon = indexOf((byte) ';', p);
+                    if (semicolon >= end) {
+                        throw new SAXException("Unterminated entity reference");
+                    }
+                    int c = decodeEntity(p + 1, semicolon);
+                    if (c >= 0x10000) {
+                        chars[length++] = Character.highSurrogate(c);
+                        chars[length++] = Character.lowSurrogate(c);
+                    } else {
+                        chars[length++] = (char) c;
+                    }
+                    p = semicolon + 1;
+                } else if (b == '\r') {
+                    chars[length++] = '\n';
+                    p += p + 1 < end && _bytes[p + 1] == '\n' ? 2 : 1;
+                } else if (b < 0x80 || _latin1) {
+                    chars[length++] = (char) b;
+                    p++;
+                } else {
+                    // Secuencia UTF-8 de 2 a 4 bytes
+                    int extra;
+                    int c;
+                    if ((b & 0xE0) == 0xC0) {
+                        extra = 1;
+                        c = b & 0x1F;
+                    } else if ((b & 0xF0) == 0xE0) {
+                        extra = 2;
+                        c = b & 0x0F;
+                    } else if ((b & 0xF8) == 0xF0) {
+                        extra = 3;
+                        c = b & 0x07;
+                    } else {
+                        throw new SAXException("Invalid UTF-8 byte " + b);
+                    }
+                    if (p + extra >= end) {
+                        throw new SAXException("Truncated UTF-8 sequence");
+                    }
+                    for (int i = 1; i <= extra; i++) {
+                        int next = _bytes[p + i] & 0xFF;
+                        if ((next & 0xC0) != 0x80) {
+                            throw new SAXException("Invalid UTF-8 sequence");
+                        }
+                        c = (c << 6) | (next & 0x3F);
+                    }
+                    if (c >= 0x10000) {
+                        chars[length++] = Character.highSurrogate(c);
+                        chars[length++] = Character.lowSurrogate(c);
+                    } else {
+                        chars[length++] = (char) c;
+                    }
+                    p += extra + 1;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * @return El carácter de una entidad (sin & ni ;)
+         */
+        private int decodeEntity(int start, int end) throws SAXException {
+            if (start < end && _bytes[start] == '#') {
+                boolean hex = start + 1 < end && _bytes[start + 1] == 'x';
+                int p = hex ? start + 2 : start + 1;
+                if (p == end || end - p > 8) {
+                    throw new SAXException("Bad character reference");
+                }
+                int c = 0;
+                for (; p < end; p++) {
+                    int digit = Character.digit((char) _bytes[p], hex ? 16 : 10);
+                    if (digit < 0) {
+                        throw new SAXException("Bad character reference");
+                    }
+                    c = c * (hex ? 16 : 10) + digit;
+                }
+                if (c == 0 || c > Character.MAX_CODE_POINT) {
+                    throw new SAXException("Bad character reference");
+                }
+                return c;
+            }
+            if (equalsAscii(start, end, AMP)) {
+                return '&';
+            } else if (equalsAscii(start, end, LT)) {
+                return '<';
+            } else if (equalsAscii(start, end, GT)) {
+                return '>';
+            } else if (equalsAscii(start, end, QUOT)) {
+                return '"';
+            } else if (equalsAscii(start, end, APOS)) {
+                return '\'';
+            }
+            throw new SAXException("Undeclared entity");
+        }
+
+        /**
+         * @return Fin de un nombre XML (etiqueta o atributo) que empieza en start
+         */
+        private int readName(int start) throws SAXException {
+            int p = start;
+            while (p < _length) {
+                byte b = _bytes[p];
+                if (b == '>' || b == '/' || b == '=' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                    break;
+                }
+                p++;
+            }
+            if (p == start) {
+                throw new SAXException("Missing name");
+            }
+            if (p >= _length) {
+                throw new SAXException("Premature end of file");
+            }
+            return p;
+        }
+
+        private void push(int nameStart, int nameLength) {
+            if (_depth == _buffers.openStarts.length) {
+                int[] starts = new int[_depth * 2];
+                int[] lengths = new int[_depth * 2];
+                System.arraycopy(_buffers.openStarts, 0, starts, 0, _depth);
+                System.arraycopy(_buffers.openLengths, 0, lengths, 0, _depth);
+                _buffers.openStarts = starts;
+                _buffers.openLengths = lengths;
+            }
+            _buffers.openStarts[_depth] = nameStart;
+            _buffers.openLengths[_depth] = nameLength;
+            _depth++;
+        }
+
+        private void checkWhitespace(int start, int end) throws SAXException {
+            for (int i = start; i < end; i++) {
+                byte b = _bytes[i];
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                    throw new SAXException("Content is not allowed outside the root element");
+                }
+            }
+        }
+
+        private char[] ensureChars(int length) {
+            // Cada byte da como mucho un carácter, salvo las referencias a caracteres suplementarios
+            if (_buffers.chars.length < length + 2) {
+                _buffers.chars = new char[Math.max(length + 2, _buffers.chars.length * 2)];
+            }
+            return _buffers.chars;
+        }
+
+        private int skipWhitespace(int p) {
+            while (p < _length && (_bytes[p] == ' ' || _bytes[p] == '\t' || _bytes[p] == '\n' || _bytes[p] == '\r')) {
+                p++;
+            }
+            return p;
+        }
+
+        /**
+         * @return Posición tras la siguiente aparición de marker
+         */
+        private int skipPast(String marker, int from) throws SAXException {
+            int p = indexOf(marker, from);
+            if (p < 0) {
+                throw new SAXException("Premature end of file");
+            }
+            return p + marker.length();
+        }
+
+        /**
+         * @return Posición de b a partir de from, o _length si no está
+         */
+        private int indexOf(byte b, int from) {
+            int p = from;
+            while (p < _length && _bytes[p] != b) {
+                p++;
+            }
+            return p;
+        }
+
+        /**
+         * @return Posición del texto ASCII a partir de from, o -1 si no está
+         */
+        private int indexOf(String marker, int from) {
+            for (int p = from; p + marker.length() <= _length; p++) {
+                if (matchesAt(marker, p)) {
+                    return p;
+                }
+            }
+            return -1;
+        }
+
+        private boolean startsWith(String marker) {
+            return _position + marker.length() <= _length && matchesAt(marker, _position);
+        }
+
+        private boolean matchesAt(String marker, int p) {
+            for (int i = 0; i < marker.length(); i++) {
+                if (_bytes[p + i] != marker.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean equalsAscii(int start, int end, char[] ascii) {
+            if (end - start != ascii.length) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length; i++) {
+                if (_bytes[start + i] != ascii[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean regionMatches(int a, int b, int length) {
+            for (int i = 0; i < length; i++) {
+                if (_bytes[a + i] != _bytes[b + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private final Buffers _buffers; ///< Buffers del hilo
+        private final byte[] _bytes; ///< El RSS
+        private final int _length; ///< Bytes del RSS
+        private final PredictionSAXHandler _handler; ///< Quien recibe los elementos
+        private int _position = 0; ///< Posición actual en _bytes
+        private int _depth = 0; ///< Elementos abiertos
+        private boolean _latin1 = false; ///< El RSS está en ISO-8859-1 en lugar de UTF-8
+    }
+
+    private final ThreadLocal<Buffers> _buffers = new ThreadLocal<>(); ///< Buffers de cada hilo
+}
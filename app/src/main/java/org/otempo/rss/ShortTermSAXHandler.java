@@ -18,10 +18,8 @@
  */
 package org.otempo.rss;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.otempo.model.Station;
 import org.otempo.model.StationPrediction;
 import org.otempo.model.StationShortTermPrediction;
 
@@ -29,32 +27,64 @@ import org.otempo.model.StationShortTermPrediction;
  * Handler SAX para parsear el RSS de las estaciones de meteogalicia
  */
 public class ShortTermSAXHandler extends PredictionSAXHandler {
-    public ShortTermSAXHandler(Station station) {
-        super(station, true);
+    private static final int TAG_SKY_MORNING = FIRST_SPECIFIC_TAG; ///< ceoM
+    private static final int TAG_SKY_AFTERNOON = FIRST_SPECIFIC_TAG + 1; ///< ceoT
+    private static final int TAG_SKY_NIGHT = FIRST_SPECIFIC_TAG + 2; ///< ceoN
+    private static final int TAG_WIND_MORNING = FIRST_SPECIFIC_TAG + 3; ///< ventoM
+    private static final int TAG_WIND_AFTERNOON = FIRST_SPECIFIC_TAG + 4; ///< ventoT
+    private static final int TAG_WIND_NIGHT = FIRST_SPECIFIC_TAG + 5; ///< ventoN
+    private static final int TAG_RAIN_MORNING = FIRST_SPECIFIC_TAG + 6; ///< pChoivaM
+    private static final int TAG_RAIN_AFTERNOON = FIRST_SPECIFIC_TAG + 7; ///< pChoivaT
+    private static final int TAG_RAIN_NIGHT = FIRST_SPECIFIC_TAG + 8; ///< pChoivaN
+
+    /// Etiquetas del RSS a corto plazo
+    private static final TagTable TAGS = new TagTable(COMMON_TAGS)
+            .add("ceoM", TAG_SKY_MORNING)
+            .add("ceoT", TAG_SKY_AFTERNOON)
+            .add("ceoN", TAG_SKY_NIGHT)
+            .add("ventoM", TAG_WIND_MORNING)
+            .add("ventoT", TAG_WIND_AFTERNOON)
+            .add("ventoN", TAG_WIND_NIGHT)
+            .add("pChoivaM", TAG_RAIN_MORNING)
+            .add("pChoivaT", TAG_RAIN_AFTERNOON)
+            .add("pChoivaN", TAG_RAIN_NIGHT);
+
+    public ShortTermSAXHandler() {
+        super(TAGS);
     }
 
     @Override
-    public void endElementSpecific(@NonNull String uri, @NonNull String localName) {
-    	if (localName.equals("ceoM")) {
-            getCurrentShortPrediction().setSkyStateMorning(parseSkyState(getCurrentText()));
-        } else if (localName.equals("ceoT")) {
-            getCurrentShortPrediction().setSkyStateAfternoon(parseSkyState(getCurrentText()));
-        } else if (localName.equals("ceoN")) {
-            getCurrentShortPrediction().setSkyStateNight(parseSkyState(getCurrentText()));
+    public void endElementSpecific(int tag) {
+        switch (tag) {
+            case TAG_SKY_MORNING:
+                getCurrentShortPrediction().setSkyStateMorning(parseSkyState());
+                break;
+            case TAG_SKY_AFTERNOON:
+                getCurrentShortPrediction().setSkyStateAfternoon(parseSkyState());
+                break;
+            case TAG_SKY_NIGHT:
+                getCurrentShortPrediction().setSkyStateNight(parseSkyState());
+                break;
 
-        } else if (localName.equals("ventoM")) {
-            getCurrentShortPrediction().setWindStateMorning(parseWindState(getCurrentText()));
-        } else if (localName.equals("ventoT")) {
-            getCurrentShortPrediction().setWindStateAfternoon(parseWindState(getCurrentText()));
-        } else if (localName.equals("ventoN")) {
-            getCurrentShortPrediction().setWindStateNight(parseWindState(getCurrentText()));
+            case TAG_WIND_MORNING:
+                getCurrentShortPrediction().setWindStateMorning(parseWindState());
+                break;
+            case TAG_WIND_AFTERNOON:
+                getCurrentShortPrediction().setWindStateAfternoon(parseWindState());
+                break;
+            case TAG_WIND_NIGHT:
+                getCurrentShortPrediction().setWindStateNight(parseWindState());
+                break;
 
-        } else if (localName.equals("pChoivaM")) {
-            getCurrentShortPrediction().setRainProbabilityMorning(Float.valueOf(getCurrentText()));
-        } else if (localName.equals("pChoivaT")) {
-            getCurrentShortPrediction().setRainProbabilityAfternoon(Float.valueOf(getCurrentText()));
-        } else if (localName.equals("pChoivaN")) {
-            getCurrentShortPrediction().setRainProbabilityNight(Float.valueOf(getCurrentText()));
+            case TAG_RAIN_MORNING:
+                getCurrentShortPrediction().setRainProbabilityMorning(getCurrentFloat());
+                break;
+            case TAG_RAIN_AFTERNOON:
+                getCurrentShortPrediction().setRainProbabilityAfternoon(getCurrentFloat());
+                break;
+            case TAG_RAIN_NIGHT:
+                getCurrentShortPrediction().setRainProbabilityNight(getCurrentFloat());
+                break;
         }
     }
 
@@ -0,0 +1,106 @@
+package org.otempo.rss;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Evita hacer el mismo trabajo varias veces a la vez. Si se pide una clave que ya se está
+ * calculando en otro hilo, se espera a ese cálculo y se comparte su resultado (o su error) en
+ * lugar de lanzar otro. La excepción es que se interrumpa al hilo que lo calcula: eso sólo le
+ * afecta a él, y los que esperaban lo calculan de nuevo.
+ */
+class SingleFlight<K, V> {
+    /**
+     * Trabajo a realizar una sola vez por clave
+     */
+    interface Call<V> {
+        V call() throws IOException;
+    }
+
+    /**
+     * Ejecuta el trabajo, o se une al que ya esté en marcha para la misma clave
+     *
+     * @param key  Clave que identifica el trabajo
+     * @param call Trabajo a realizar si no hay otro en marcha
+     * @return El resultado del trabajo, compartido entre todos los que lo pidieron a la vez
+     */
+    V run(K key, final Call<V> call) throws IOException {
+        while (true) {
+            FutureTask<V> task = new FutureTask<>(new Callable<V>() {
+                @Override
+                public V call() throws IOException {
+                    try {
+                        return call.call();
+                    } catch (IOException e) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new LeaderInterrupted(e);
+                        }
+                        throw e;
+                    }
+                }
+            });
+            FutureTask<V> running = _calls.putIfAbsent(key, task);
+            boolean leader = running == null;
+            if (leader) {
+                try {
+                    task.run();
+                } finally {
+                    _calls.remove(key, task);
+                }
+                running = task;
+            }
+            try {
+                return get(running, key);
+            } catch (LeaderInterrupted e) {
+                if (leader) {
+                    throw e.getCause();
+                }
+                // Al que calculaba lo han interrumpido a él, no a nosotros: se vuelve a calcular
+                _calls.remove(key, running);
+            }
+        }
+    }
+
+    /**
+     * @return El resultado de un trabajo terminado (o que termina otro hilo), con su excepción si la hubo
+     */
+    private V get(FutureTask<V> running, K key) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Error de un trabajo cuyo hilo fue interrumpido: no se comparte con los que esperaban
+     */
+    private static class LeaderInterrupted extends IOException {
+        LeaderInterrupted(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /// Trabajos en marcha, por clave
+    private final ConcurrentHashMap<K, FutureTask<V>> _calls = new ConcurrentHashMap<>();
+}
@@ -18,65 +18,802 @@
  */
 package org.otempo.rss;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import androidx.annotation.Nullable;
 import android.util.Log;
 
+import org.otempo.model.Station;
+import org.otempo.util.Nullness;
+
 /**
  * Caché de estaciones. Almacena en la SD una copia de los RSS solicitados a meteogalicia, y evita volver a descargarlas de Internet si la copia es muy reciente.
  */
 public class StationCache {
     private static final String DATA_DIR = "org.otempo/cache/"; ///< Ubicación de la caché
-    private static final long MAX_STORAGE_HOURS = 1; ///< Máxima edad permitida para una copia en caché, a partir de ahí se vuelve a descargar (en horas)
-    private static final long MAX_STORAGE_AGE = 1000 * 3600 * MAX_STORAGE_HOURS; ///< Máxima edad permitida para una copia en caché, a partir de ahí se vuelve a descargar (en ms)
+    private static final long DEFAULT_STORAGE_HOURS = 1; ///< Edad permitida para una copia en caché si el servidor no indica otra cosa (en horas)
+    private static final long DEFAULT_STORAGE_AGE = 1000 * 3600 * DEFAULT_STORAGE_HOURS; ///< Edad permitida para una copia en caché si el servidor no indica otra cosa (en ms)
+    private static final String PACK_FILE = "feeds.pack"; ///< Fichero con todas las copias de los RSS
+    private static final String COMPRESSED_SUFFIX = ".gz"; ///< Sufijo de las copias sueltas (de versiones anteriores) comprimidas con gzip
+    /// Copias sueltas de versiones anteriores, que se pasan al fichero único: estación, tipo y si está comprimida
+    private static final Pattern LOOSE_FILE = Pattern.compile("(\\d+)_(short|medium)\\.rss(\\.gz)?");
+    private static final String NEGATIVE_CACHE_FILE = "failures.properties"; ///< Fichero con los RSS que fallan repetidamente
+    private static final String DATA_USAGE_FILE = "usage.properties"; ///< Fichero con los bytes descargados
+    private static final String SCHEDULE_FILE = "schedule.properties"; ///< Fichero con las horas de publicación vistas
+    private static final String META_ETAG = "etag"; ///< Clave de metadatos con el ETag devuelto por el servidor
+    private static final String META_LAST_MODIFIED = "lastModified"; ///< Clave de metadatos con la cabecera Last-Modified devuelta por el servidor
+    private static final String META_VALIDATED = "validated"; ///< Clave de metadatos con el instante (ms) en que se validó la copia por última vez
+    private static final String META_EXPIRES = "expires"; ///< Clave de metadatos con el instante (ms) a partir del cual la copia deja de ser fresca
+
+    /// Dirección base de los RSS de meteogalicia
+    private static final String DEFAULT_BASE_URL = "http://servizos.meteogalicia.es/rss/predicion/";
+
+    /// Tiempo que se deja de usar un origen con demasiados errores (en ms)
+    private static final long ORIGIN_COOL_DOWN = 1000 * 60 * 2;
+
+    /// Servidores a los que se piden los RSS: meteogalicia, o una lista de espejos (o servidores locales para hacer pruebas)
+    private static volatile OriginSelector _origins = new OriginSelector(Collections.singletonList(DEFAULT_BASE_URL), ORIGIN_COOL_DOWN);
+    /// Proxy al que pedir de una vez los RSS de muchas estaciones (FeedBatch), o null para pedirlos uno a uno
+    @Nullable
+    private static volatile String _batchUrl = null;
+    /// RSS obtenidos por adelantado con prefetchBatch, a la espera de que los pida getStationRSS
+    private static final Map<String, CachedFeed> _prefetched = new ConcurrentHashMap<>();
+    /// RSS que el lote confirmó sin cambios (304): la copia de la SD no se abre hasta que se pida
+    private static final Set<String> _prefetchedUnchanged = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /// Cómo se hacen las peticiones. Las conexiones se reutilizan entre RSS (ver HttpFeedTransport)
+    private static volatile FeedTransport _transport = new HttpFeedTransport();
+
+    /// Guardar las copias en la SD comprimidas con gzip (los RSS son XML muy repetitivo y ocupan entre 5 y 10 veces menos)
+    private static volatile boolean _compressStorage = true;
+    /// Al comprimir, usar el diccionario de RSS en lugar de gzip (ocupa aproximadamente la mitad). Desactivado
+    /// mientras FeedDictionary no se genere a partir de RSS reales: cambiar el diccionario invalida las copias
+    private static volatile boolean _useDictionary = false;
+
+    /// Tamaño máximo de las copias en la SD (en bytes); al pasarse se desalojan las menos usadas
+    private static volatile long _maxStorageBytes = 2 * 1024 * 1024;
+    /// Contadores de aciertos y fallos de la caché
+    private static final CacheStats _stats = new CacheStats();
+
+    /// Cómo se refresca el RSS a corto plazo
+    private static volatile RefreshPolicy _shortTermPolicy = RefreshPolicy.SHORT_TERM;
+    /// Cómo se refresca el RSS a medio plazo
+    private static volatile RefreshPolicy _mediumTermPolicy = RefreshPolicy.MEDIUM_TERM;
+
+    /// Tiempo máximo para establecer la conexión con meteogalicia (en ms)
+    private static volatile int _connectTimeout = 10000;
+    /// Tiempo máximo de espera por datos una vez conectados (en ms)
+    private static volatile int _readTimeout = 15000;
+    /// Reintentos ante fallos transitorios (errores de red, 5xx), además del primer intento
+    private static volatile int _maxRetries = 2;
+    /// Espera antes del primer reintento; se dobla en cada uno de los siguientes (en ms)
+    private static final long RETRY_BASE_DELAY = 1000;
+    /// Espera máxima entre reintentos (en ms)
+    private static final long RETRY_MAX_DELAY = 30000;
+    /// Reintentos realizados desde que arrancó el proceso
+    private static final AtomicInteger _retryCount = new AtomicInteger();
+    /// Para repartir los reintentos en el tiempo
+    private static final Random _random = new Random();
+    /// Tras 3 fallos seguidos se deja de preguntar a meteogalicia durante 5 minutos
+    private static final CircuitBreaker _circuitBreaker = new CircuitBreaker(3, 1000 * 60 * 5);
+    /// RSS que fallan repetidamente, se crea al primer uso
+    @Nullable
+    private static NegativeCache _negativeCache = null;
+    /// Bytes descargados, se crea al primer uso
+    @Nullable
+    private static DataUsage _dataUsage = null;
+    /// Horas de publicación de los RSS, se crea al primer uso
+    @Nullable
+    private static PublicationSchedule _publicationSchedule = null;
+    /// Tipo de red por la que se descarga ahora mismo (DataUsage.NETWORK_*), para repartir los contadores
+    private static volatile String _networkType = DataUsage.NETWORK_OTHER;
+    /// Fichero con las copias de los RSS, se abre al primer uso
+    @Nullable
+    private static FeedPack _pack = null;
+    /// Compactación del fichero de copias, en segundo plano
+    private static final Executor _compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OTempo-compact");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /// Hay una compactación pendiente
+    private static final AtomicBoolean _compactionScheduled = new AtomicBoolean();
+
+    /**
+     * Cambia la forma de hacer las peticiones (por ejemplo por un servidor simulado para pruebas)
+     *
+     * @param transport Transporte a usar a partir de ahora
+     */
+    public static void setTransport(FeedTransport transport) {
+        _transport = transport;
+    }
+
+    /**
+     * Cambia el servidor al que se piden los RSS
+     *
+     * @param baseUrl Dirección base (terminada en /) de la que cuelgan rssLocalidades.action y
+     *                rssConcellosMPrazo.action, o null para volver a meteogalicia
+     */
+    public static void setBaseUrl(@Nullable String baseUrl) {
+        setOrigins(baseUrl != null ? Collections.singletonList(baseUrl) : null);
+    }
+
+    /**
+     * Cambia los servidores a los que se piden los RSS. Cada petición va al más rápido de los que
+     * responden bien, y si falla se pasa a otro antes de esperar para reintentar.
+     *
+     * @param baseUrls Direcciones base (terminadas en /), por orden de preferencia, o null (o vacía)
+     *                 para volver a meteogalicia
+     */
+    public static void setOrigins(@Nullable List<String> baseUrls) {
+        if (baseUrls == null || baseUrls.isEmpty()) {
+            baseUrls = Collections.singletonList(DEFAULT_BASE_URL);
+        }
+        _origins = new OriginSelector(baseUrls, ORIGIN_COOL_DOWN);
+    }
+
+    /**
+     * @return Los servidores a los que se piden los RSS, para consultar su latencia y su estado
+     */
+    public static OriginSelector getOrigins() {
+        return _origins;
+    }
+
+    /**
+     * Activa o desactiva el modo por lotes (prefetchBatch)
+     *
+     * @param batchUrl Dirección del proxy que agrupa los RSS (ver FeedBatch), o null para pedirlos uno a uno
+     */
+    public static void setBatchUrl(@Nullable String batchUrl) {
+        _batchUrl = batchUrl;
+    }
+
+    /**
+     * Informa de por qué tipo de red se está descargando, para contar los bytes por separado
+     *
+     * @param networkType DataUsage.NETWORK_*
+     */
+    public static void setNetworkType(String networkType) {
+        _networkType = networkType;
+    }
+
+    /**
+     * @return Los contadores de bytes descargados
+     */
+    public static synchronized DataUsage getDataUsage(File cacheDir) {
+        DataUsage dataUsage = _dataUsage;
+        if (dataUsage == null) {
+            dataUsage = new DataUsage(new File(cacheDir, DATA_DIR + DATA_USAGE_FILE));
+            _dataUsage = dataUsage;
+        }
+        return dataUsage;
+    }
+
+    /**
+     * @return Las horas a las que meteogalicia suele publicar cada tipo de RSS
+     */
+    public static synchronized PublicationSchedule getPublicationSchedule(File cacheDir) {
+        PublicationSchedule schedule = _publicationSchedule;
+        if (schedule == null) {
+            schedule = new PublicationSchedule(new File(cacheDir, DATA_DIR + SCHEDULE_FILE));
+            _publicationSchedule = schedule;
+        }
+        return schedule;
+    }
+
+    /**
+     * Configura los tiempos máximos de espera de las peticiones a meteogalicia
+     *
+     * @param connectTimeout Tiempo máximo para establecer la conexión (en ms)
+     * @param readTimeout    Tiempo máximo de espera por datos (en ms)
+     */
+    public static void setTimeouts(int connectTimeout, int readTimeout) {
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+    }
+
+    /**
+     * @param maxRetries Reintentos ante fallos transitorios, además del primer intento
+     */
+    public static void setMaxRetries(int maxRetries) {
+        _maxRetries = maxRetries;
+    }
+
+    /**
+     * @return Reintentos realizados desde que arrancó el proceso
+     */
+    public static int getRetryCount() {
+        return _retryCount.get();
+    }
+
+    /**
+     * @return El cortacircuitos de las peticiones a meteogalicia, para consultar su estado
+     */
+    public static CircuitBreaker getCircuitBreaker() {
+        return _circuitBreaker;
+    }
+
+    /**
+     * @param maxBytes Tamaño máximo de las copias en la SD (en bytes). Se aplica al guardar la siguiente copia
+     */
+    public static void setMaxStorageBytes(long maxBytes) {
+        _maxStorageBytes = maxBytes;
+    }
+
+    /**
+     * @return Los contadores de aciertos, fallos y desalojos de la caché
+     */
+    public static CacheStats getStats() {
+        return _stats;
+    }
+
+    /**
+     * Acota la frescura que anuncia el servidor (Cache-Control: max-age / Expires), igual para los
+     * dos tipos de RSS.
+     *
+     * @param minAge Edad mínima de una copia antes de volver a preguntar (en ms)
+     * @param maxAge Edad máxima de una copia aunque el servidor permita más (en ms)
+     */
+    public static void setStorageAgeBounds(long minAge, long maxAge) {
+        _shortTermPolicy = _shortTermPolicy.withAgeBounds(minAge, maxAge);
+        _mediumTermPolicy = _mediumTermPolicy.withAgeBounds(minAge, maxAge);
+    }
+
+    /**
+     * Cambia cómo se refresca uno de los tipos de RSS
+     */
+    public static void setRefreshPolicy(boolean shortTerm, RefreshPolicy policy) {
+        if (shortTerm) {
+            _shortTermPolicy = policy;
+        } else {
+            _mediumTermPolicy = policy;
+        }
+    }
+
+    /**
+     * @return Cómo se refresca uno de los tipos de RSS
+     */
+    public static RefreshPolicy getRefreshPolicy(boolean shortTerm) {
+        return shortTerm ? _shortTermPolicy : _mediumTermPolicy;
+    }
+
+    /**
+     * Permite elegir si las nuevas copias se guardan comprimidas. Las copias ya existentes se
+     * siguen leyendo en el formato en que se guardaron.
+     *
+     * @param compress true para guardar con gzip, false para guardar el XML tal cual
+     */
+    public static void setCompressStorage(boolean compress) {
+        _compressStorage = compress;
+    }
+
+    /**
+     * Permite elegir cómo se comprimen las nuevas copias, si se comprimen
+     *
+     * @param useDictionary true para usar el diccionario de RSS (DictionaryCodec), false para gzip
+     */
+    public static void setUseDictionary(boolean useDictionary) {
+        _useDictionary = useDictionary;
+    }
 
     /**
      * Obtiene el RSS de una estación, decidiendo si servirlo directamente desde la SD, o desde Internet
      *
      * @param stationId    ID de la estación
      * @param forceStorage Permite forzar que deseamos cargarlo desde la SD (por ej: si no hay conexión a Internet)
-     * @return Un flujo del que leer el RSS
+     * @return El RSS y si ha cambiado desde la última descarga
      */
     @Nullable
-    public static InputStream getStationRSS(int stationId, boolean shortTerm, boolean forceStorage, File cacheDir) {
-        InputStream stream = null;
-        long storageAge = getStorageAge(stationId, shortTerm, cacheDir);
-        // Si la edad de la caché no es buena, intentamos coger de internet
-        if ((storageAge < 0 || storageAge > MAX_STORAGE_AGE) && !forceStorage) {
-            stream = getFromInternet(stationId, shortTerm, cacheDir);
+    public static CachedFeed getStationRSS(int stationId, boolean shortTerm, boolean forceStorage, File cacheDir) {
+        // Lo que ya llegó en un lote se usa tal cual, como si acabase de responder el servidor
+        CachedFeed feed = forceStorage ? null : takePrefetched(stationId, shortTerm, cacheDir);
+        boolean fresh = feed == null && isFresh(stationId, shortTerm, cacheDir);
+        // Si la caché no es fresca, intentamos coger de internet, salvo que el RSS venga fallando
+        if (feed == null && !fresh && !forceStorage) {
+            if (getNegativeCache(cacheDir).isBlocked(stationId, shortTerm)) {
+                Log.d("OTempo", "Feed for station " + stationId + " failing lately, using storage");
+            } else if (isDeferred(stationId, shortTerm, cacheDir)) {
+                Log.d("OTempo", "Feed " + makeFileName(stationId, shortTerm) + " waits for an unmetered network, using storage");
+            } else {
+                feed = getFromInternet(stationId, shortTerm, cacheDir);
+            }
         }
         // Si en internet no se puede, o la caché es buena, pues de la caché
-        if (stream == null) {
-            stream = getFromStorage(stationId, shortTerm, cacheDir);
+        if (feed == null) {
+            InputStream stream = getFromStorage(stationId, shortTerm, cacheDir);
+            if (stream != null) {
+                feed = new CachedFeed(stream, false);
+            }
+        }
+        // Las lecturas forzadas de la SD (la primera pasada de loadThenRevalidate, la reconstrucción
+        // tras descargar el otro RSS) no deciden nada; la carga se cuenta en la lectura que sí decide
+        if (!forceStorage) {
+            if (feed == null) {
+                _stats.recordMiss();
+            } else if (feed.isUnchanged()) {
+                _stats.recordRevalidation();
+            } else if (!feed.isDownloaded()) {
+                if (fresh) {
+                    _stats.recordHit();
+                } else {
+                    _stats.recordStaleHit();
+                }
+            } else {
+                _stats.recordMiss();
+            }
         }
         // Puede que devolvamos null a pesar de todo
-        return stream;
+        return feed;
     }
 
     /**
+     * Confirma que un RSS recién descargado se pudo parsear: se termina de leer, pasa a ser la copia
+     * de la SD (junto con sus metadatos), y el RSS sale de la tabla de fallos. Si no se pudo copiar
+     * entero, se mantiene la copia anterior.
+     * Si resulta idéntico a la copia que ya había (mismo hash), no se vuelve a guardar: sólo se
+     * renueva su frescura, igual que si el servidor hubiese respondido 304, y sus validadores si el
+     * servidor manda otros. El hash se calcula a medida que el parser lee la descarga, así que se
+     * sigue parseando mientras llega de la red.
+     *
+     * @param feed RSS descargado con getStationRSS, ya parseado
+     * @return true si el RSS es idéntico a la copia que ya había, y por tanto no hace falta actualizar las predicciones
+     */
+    public static boolean commitDownload(CachedFeed feed, File cacheDir) {
+        FeedDownload download = feed.getDownload();
+        if (download == null) {
+            return false;
+        }
+        int stationId = download.getStationId();
+        boolean shortTerm = download.isShortTerm();
+        boolean complete;
+        try {
+            complete = download.finish();
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to finish download of " + makeFileName(stationId, shortTerm), e);
+            complete = false;
+        }
+        FeedPack pack = getPack(cacheDir);
+        boolean identical = false;
+        if (complete && pack != null) {
+            Properties metadata = download.getMetadata();
+            String etag = metadata.getProperty(META_ETAG);
+            String lastModified = metadata.getProperty(META_LAST_MODIFIED);
+            long validated = getLongMetadata(metadata, META_VALIDATED);
+            long expires = getLongMetadata(metadata, META_EXPIRES);
+            identical = matchesStoredCopy(download, cacheDir);
+            String[] validators = identical ? pack.readValidators(stationId, shortTerm) : null;
+            if (validators != null && Nullness.equals(validators[0], etag) && Nullness.equals(validators[1], lastModified)) {
+                pack.touch(stationId, shortTerm, validated, expires);
+            } else {
+                // Contenido nuevo, o el mismo con otros validadores: sin ellos, las peticiones condicionales fallarían
+                pack.put(stationId, shortTerm, download.getContent(), download.getFormat(), download.getHash(),
+                        etag, lastModified, validated, expires);
+                enforceBudget(pack, stationId, shortTerm);
+                scheduleCompaction(pack);
+            }
+            if (identical) {
+                Log.d("OTempo", "Downloaded " + makeFileName(stationId, shortTerm) + " is identical to the stored copy");
+            }
+        }
+        getNegativeCache(cacheDir).recordSuccess(stationId, shortTerm);
+        return identical;
+    }
+
+    /**
+     * @param download Descarga ya leída entera
+     * @return true si el RSS descargado es idéntico a la copia guardada
+     */
+    static boolean matchesStoredCopy(FeedDownload download, File cacheDir) {
+        FeedPack pack = getPack(cacheDir);
+        FeedPack.Entry entry = pack != null ? pack.find(download.getStationId(), download.isShortTerm()) : null;
+        return entry != null && entry.hash == download.getHash();
+    }
+
+    /**
+     * Descarta un RSS recién descargado que no se pudo parsear: la copia anterior (si la había)
+     * sigue en su sitio, y el RSS entra en la tabla de fallos, para no volver a descargarlo enseguida.
+     *
+     * @param feed   RSS descargado con getStationRSS
+     * @param reason Error que se produjo al parsear
+     */
+    public static void rejectDownload(CachedFeed feed, String reason, File cacheDir) {
+        FeedDownload download = feed.getDownload();
+        if (download == null) {
+            return;
+        }
+        download.abort();
+        getNegativeCache(cacheDir).recordFailure(download.getStationId(), download.isShortTerm(), "Parse error: " + reason);
+    }
+
+    /**
+     * @return La tabla de RSS que fallan repetidamente
+     */
+    private static synchronized NegativeCache getNegativeCache(File cacheDir) {
+        NegativeCache negativeCache = _negativeCache;
+        if (negativeCache == null) {
+            negativeCache = new NegativeCache(new File(cacheDir, DATA_DIR + NEGATIVE_CACHE_FILE));
+            _negativeCache = negativeCache;
+        }
+        return negativeCache;
+    }
+
+    /**
+     * @return El fichero con las copias de los RSS, o null si no se puede abrir
+     */
+    @Nullable
+    private static synchronized FeedPack getPack(File cacheDir) {
+        FeedPack pack = _pack;
+        if (pack == null) {
+            File dataDir = new File(cacheDir, DATA_DIR);
+            try {
+                pack = new FeedPack(new File(dataDir, PACK_FILE));
+            } catch (IOException e) {
+                Log.e("OTempo", "Unable to open feed pack in " + dataDir, e);
+                return null;
+            }
+            importLooseFiles(pack, dataDir);
+            _pack = pack;
+        }
+        return pack;
+    }
+
+    /**
+     * Compacta el fichero de copias en segundo plano, si tiene demasiado espacio desperdiciado
+     */
+    private static void scheduleCompaction(final FeedPack pack) {
+        if (!pack.needsCompaction() || !_compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        _compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _compactionScheduled.set(false);
+                try {
+                    pack.compact();
+                } catch (IOException e) {
+                    Log.e("OTempo", "Unable to compact feed pack", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Desaloja copias hasta no pasar del tamaño máximo. Primero las de las estaciones que menos se
+     * consultan (según los contadores de favoritos), y entre ellas las que llevan más tiempo sin
+     * leerse; así las favoritas son las últimas en irse.
+     *
+     * @param stationId Estación de la copia que se acaba de guardar, que nunca se desaloja
+     */
+    private static void enforceBudget(FeedPack pack, int stationId, boolean shortTerm) {
+        long excess = pack.getLiveBytes() - _maxStorageBytes;
+        if (excess <= 0) {
+            return;
+        }
+        List<FeedPack.Entry> entries = pack.list();
+        final Map<Integer, Integer> accessCounts = new HashMap<>();
+        for (FeedPack.Entry entry : entries) {
+            Station station = Station.getById(entry.stationId);
+            accessCounts.put(entry.stationId, station != null ? station.getAccessCount() : 0);
+        }
+        Collections.sort(entries, new Comparator<FeedPack.Entry>() {
+            @Override
+            public int compare(FeedPack.Entry a, FeedPack.Entry b) {
+                int accessA = accessCounts.get(a.stationId);
+                int accessB = accessCounts.get(b.stationId);
+                if (accessA != accessB) {
+                    return accessA < accessB ? -1 : 1;
+                }
+                return a.accessed < b.accessed ? -1 : (a.accessed == b.accessed ? 0 : 1);
+            }
+        });
+        for (FeedPack.Entry entry : entries) {
+            if (excess <= 0) {
+                break;
+            }
+            if (entry.stationId == stationId && entry.shortTerm == shortTerm) {
+                continue;
+            }
+            // Con la copia se va también la anterior, que cuenta igual en getLiveBytes
+            excess -= pack.remove(entry.stationId, entry.shortTerm);
+            _stats.recordEviction();
+            Log.d("OTempo", "Evicted " + makeFileName(entry.stationId, entry.shortTerm) + " from cache");
+        }
+    }
+
+    /**
+     * Pasa al fichero único las copias sueltas (un fichero por RSS, con sus metadatos al lado) que
+     * dejaron versiones anteriores, y las borra
+     */
+    private static void importLooseFiles(FeedPack pack, File dataDir) {
+        File[] files = dataDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".meta") || name.endsWith(".tmp") || name.endsWith(".prev")) {
+                file.delete();
+                continue;
+            }
+            Matcher matcher = LOOSE_FILE.matcher(name);
+            if (!matcher.matches()) {
+                continue;
+            }
+            int stationId = Integer.parseInt(matcher.group(1));
+            boolean shortTerm = matcher.group(2).equals("short");
+            boolean compressed = matcher.group(3) != null;
+            File metadataFile = new File(dataDir, String.format(Locale.US, "%d_%s.meta", stationId, matcher.group(2)));
+            try {
+                byte[] content = readFully(new FileInputStream(file));
+                CRC32 hash = new CRC32();
+                byte[] plain = compressed ? readFully(new GZIPInputStream(new FileInputStream(file))) : content;
+                hash.update(plain, 0, plain.length);
+                Properties metadata = loadMetadata(metadataFile);
+                long validated = Math.max(getLongMetadata(metadata, META_VALIDATED), file.lastModified());
+                long expires = getLongMetadata(metadata, META_EXPIRES);
+                pack.put(stationId, shortTerm, content, compressed ? FeedPack.FLAG_COMPRESSED : 0, (int) hash.getValue(),
+                        metadata.getProperty(META_ETAG), metadata.getProperty(META_LAST_MODIFIED),
+                        validated, expires > 0 ? expires : validated + DEFAULT_STORAGE_AGE);
+            } catch (IOException e) {
+                Log.w("OTempo", "Unable to import " + file, e);
+            }
+            file.delete();
+            metadataFile.delete();
+        }
+    }
+
+    /**
+     * Lee un flujo entero, y lo cierra
+     */
+    private static byte[] readFully(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                content.write(buffer, 0, n);
+            }
+            return content.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Pide de una vez, al proxy configurado con setBatchUrl, todos los RSS de estas estaciones que
+     * no estén frescos. Lo que llega queda a la espera de que lo pida getStationRSS, que lo trata
+     * como si acabase de descargarlo (se parsea, y sólo entonces se guarda), hasta que se llame a
+     * discardPrefetched al acabar la actualización. Lo que el proxy no
+     * pudo obtener, o todo si falla el lote, se pedirá uno a uno como siempre.
+     *
+     * @param refreshShortTerm  Pedir los RSS a corto plazo
+     * @param refreshMediumTerm Pedir los RSS a medio plazo
+     * @return Número de RSS obtenidos (cambiados o confirmados sin cambios)
+     */
+    public static int prefetchBatch(List<Integer> stationIds, boolean refreshShortTerm, boolean refreshMediumTerm, File cacheDir) {
+        String batchUrl = _batchUrl;
+        if (batchUrl == null) {
+            return 0;
+        }
+        discardPrefetched();
+        FeedPack pack = getPack(cacheDir);
+        NegativeCache negativeCache = getNegativeCache(cacheDir);
+        StringBuilder query = new StringBuilder();
+        for (int stationId : stationIds) {
+            for (boolean shortTerm : new boolean[]{true, false}) {
+                if (!(shortTerm ? refreshShortTerm : refreshMediumTerm) || isFresh(stationId, shortTerm, cacheDir)
+                        || negativeCache.isBlocked(stationId, shortTerm) || isDeferred(stationId, shortTerm, cacheDir)) {
+                    continue;
+                }
+                FeedPack.Entry entry = pack != null ? pack.find(stationId, shortTerm) : null;
+                query.append(query.length() == 0 ? "" : ",")
+                        .append(FeedBatch.makeQueryItem(stationId, shortTerm, entry != null ? entry.hash : null));
+            }
+        }
+        if (query.length() == 0) {
+            return 0;
+        }
+        String url = batchUrl + (batchUrl.contains("?") ? "&" : "?") + "feeds=" + query;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Accept-Encoding", "gzip, deflate");
+        List<FeedBatch.Item> items;
+        long now;
+        long shortTermExpires;
+        long mediumTermExpires;
+        try {
+            FeedTransport.Response response = _transport.get(url, headers, _connectTimeout, _readTimeout);
+            try {
+                if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+                    throw new HttpStatusException(response.getStatusCode(), url);
+                }
+                now = new Date().getTime();
+                shortTermExpires = now + getFreshnessLifetime(response, true);
+                mediumTermExpires = now + getFreshnessLifetime(response, false);
+                MeteredInputStream body = new MeteredInputStream(response.getBody(), getDataUsage(cacheDir), -1, false);
+                try {
+                    items = FeedBatch.read(new BufferedInputStream(decodeContent(response, body)));
+                } finally {
+                    body.close();
+                }
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Batch request failed, falling back to one request per feed", e);
+            return 0;
+        }
+        int obtained = 0;
+        for (FeedBatch.Item item : items) {
+            String key = makeFileName(item.stationId, item.shortTerm);
+            long expires = item.shortTerm ? shortTermExpires : mediumTermExpires;
+            if (item.status == HttpURLConnection.HTTP_OK && item.body != null) {
+                Properties metadata = new Properties();
+                if (item.etag != null) {
+                    metadata.setProperty(META_ETAG, item.etag);
+                }
+                metadata.setProperty(META_VALIDATED, String.valueOf(now));
+                metadata.setProperty(META_EXPIRES, String.valueOf(expires));
+                _prefetched.put(key, new CachedFeed(startDownload(item.stationId, item.shortTerm,
+                        new ByteArrayInputStream(item.body), metadata)));
+                obtained++;
+            } else if (item.status == HttpURLConnection.HTTP_NOT_MODIFIED && pack != null
+                    && pack.touch(item.stationId, item.shortTerm, now, expires)) {
+                _prefetchedUnchanged.add(key);
+                obtained++;
+            }
+        }
+        Log.d("OTempo", "Batch request returned " + obtained + " of " + items.size() + " feeds");
+        return obtained;
+    }
+
+    /**
+     * @return Lo que llegó en el lote para este RSS (que deja de estar a la espera), o null si no llegó nada
+     */
+    @Nullable
+    private static CachedFeed takePrefetched(int stationId, boolean shortTerm, File cacheDir) {
+        String key = makeFileName(stationId, shortTerm);
+        CachedFeed feed = _prefetched.remove(key);
+        if (feed == null && _prefetchedUnchanged.remove(key)) {
+            InputStream stored = getFromStorage(stationId, shortTerm, cacheDir);
+            if (stored != null) {
+                feed = new CachedFeed(stored, true);
+            }
+        }
+        return feed;
+    }
+
+    /**
+     * Descarta lo que quede del último lote sin usar. Se llama al acabar cada actualización, aunque
+     * se haya cortado antes de tiempo, para que no se sirva más tarde algo de un lote viejo.
+     */
+    public static void discardPrefetched() {
+        for (String key : _prefetched.keySet()) {
+            CachedFeed feed = _prefetched.remove(key);
+            if (feed != null) {
+                feed.close();
+            }
+        }
+        _prefetchedUnchanged.clear();
+    }
+
+    /**
+     * @return true si el RSS no se debe descargar ahora por la red que hay (su política pide una red
+     * sin límite de datos y estamos con datos móviles), y hay una copia que servir mientras tanto que
+     * no supera la edad máxima de la política. Una copia más vieja se descarga igualmente, para no
+     * mostrar predicciones de hace días a quien sólo tiene datos móviles.
+     */
+    private static boolean isDeferred(int stationId, boolean shortTerm, File cacheDir) {
+        RefreshPolicy policy = getRefreshPolicy(shortTerm);
+        if (!policy.requiresUnmetered() || !DataUsage.NETWORK_MOBILE.equals(_networkType)) {
+            return false;
+        }
+        FeedPack pack = getPack(cacheDir);
+        FeedPack.Entry entry = pack != null ? pack.find(stationId, shortTerm) : null;
+        if (entry == null) {
+            return false;
+        }
+        long age = new Date().getTime() - entry.validated;
+        return age >= 0 && age < policy.getMaxAge();
+    }
+
+    /**
+     * Comprueba si la copia en caché de una estación todavía se puede usar sin preguntar al servidor
+     *
      * @param stationId ID de estación
-     * @return Edad de la cache en milisegundos para una estación
+     * @return true si hay copia, no ha caducado y no se ha publicado otra desde que se validó (esto
+     * último sólo se mira pasada la edad mínima de la política)
      */
-    private static long getStorageAge(int stationId, boolean shortTerm, File cacheDir) {
-        File cache = new File(cacheDir, DATA_DIR + makeFileName(stationId, shortTerm));
-        if (cache.exists()) {
-            Date d = new Date();
-            return d.getTime() - cache.lastModified();
-        } else {
-            return -1;
+    private static boolean isFresh(int stationId, boolean shortTerm, File cacheDir) {
+        FeedPack pack = getPack(cacheDir);
+        FeedPack.Entry entry = pack != null ? pack.find(stationId, shortTerm) : null;
+        if (entry == null) {
+            return false;
+        }
+        long now = new Date().getTime();
+        // Si el reloj ha ido hacia atrás, no nos fiamos de la copia
+        if (now < entry.validated || now >= entry.expires) {
+            return false;
         }
+        // Nunca se pregunta antes de la edad mínima, ni siquiera cuando meteogalicia se retrasa
+        // (entonces getStaleBefore pide revalidar cada poco)
+        if (now - entry.validated < getRefreshPolicy(shortTerm).getMinAge()) {
+            return true;
+        }
+        // Pasada, se pregunta si meteogalicia ha publicado (o debería haber publicado) desde que se validó
+        return entry.validated >= getPublicationSchedule(cacheDir).getStaleBefore(shortTerm, now);
+    }
+
+    /**
+     * Calcula durante cuánto tiempo se puede usar una respuesta sin volver a preguntar, a partir de
+     * las cabeceras Cache-Control (max-age, no-cache) o Expires. Si no hay ninguna, se usa
+     * DEFAULT_STORAGE_AGE. En todo caso se acota entre la edad mínima y máxima de la política del RSS.
+     *
+     * @param response Respuesta del servidor
+     * @return Tiempo de validez de la respuesta (en ms)
+     */
+    private static long getFreshnessLifetime(FeedTransport.Response response, boolean shortTerm) {
+        long lifetime = -1;
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    lifetime = 0;
+                    break;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        lifetime = 1000 * Long.parseLong(directive.substring("max-age=".length()).replace("\"", ""));
+                    } catch (NumberFormatException e) {
+                        Log.w("OTempo", "Bad Cache-Control: " + cacheControl);
+                    }
+                }
+            }
+        }
+        if (lifetime < 0) {
+            long expires = response.getHeaderDate("Expires", -1);
+            if (expires > 0) {
+                // Relativo a la fecha del servidor, para no depender de que los relojes coincidan
+                long date = response.getHeaderDate("Date", 0);
+                lifetime = Math.max(0, expires - (date > 0 ? date : new Date().getTime()));
+            }
+        }
+        if (lifetime < 0) {
+            lifetime = DEFAULT_STORAGE_AGE;
+        }
+        return getRefreshPolicy(shortTerm).clampAge(lifetime);
     }
 
     /**
@@ -85,12 +822,24 @@ public class StationCache {
      */
     @Nullable
     private static InputStream getFromStorage(int stationId, boolean shortTerm, File cacheDir) {
-        File cache = new File(cacheDir, DATA_DIR + makeFileName(stationId, shortTerm));
-        try {
-            return new FileInputStream(cache);
-        } catch (FileNotFoundException e) {
+        FeedPack pack = getPack(cacheDir);
+        // Se lee directamente del mapeo, sin copiarlo
+        FeedPack.Body body = pack != null ? pack.openVerified(stationId, shortTerm, new Date().getTime()) : null;
+        if (body == null) {
             return null;
         }
+        if ((body.flags & FeedPack.FLAG_DICTIONARY) != 0) {
+            return DictionaryCodec.decompress(body.stream);
+        } else if ((body.flags & FeedPack.FLAG_COMPRESSED) != 0) {
+            try {
+                // Se descomprime sobre la marcha, directamente hacia el parser
+                return new GZIPInputStream(body.stream);
+            } catch (IOException e) {
+                Log.e("OTempo", "Unable to open compressed copy of " + makeFileName(stationId, shortTerm), e);
+                return null;
+            }
+        }
+        return body.stream;
     }
 
     /**
@@ -99,45 +848,29 @@ public class StationCache {
      * @param stationId Id de la estación a invalidar
      */
     public static boolean removeCached(int stationId, boolean shortTerm, File cacheDir) {
-        File dataDir = new File(cacheDir, DATA_DIR);
-        if (!dataDir.exists()) return true;
-        File cache = new File(dataDir, makeFileName(stationId, shortTerm));
-        cache.delete();
+        FeedPack pack = getPack(cacheDir);
+        if (pack != null) {
+            pack.remove(stationId, shortTerm);
+            scheduleCompaction(pack);
+        }
         return true;
     }
 
     /**
-     * Almacena en caché el rss de una estación
+     * Prepara la copia en caché del RSS de una estación, que se irá guardando en memoria a medida
+     * que se lea el flujo
      *
      * @param stationId ID de la estación a almacenar
      * @param rss       flujo del que se puede leer el RSS
-     * @return true si se pudo guardar correctamente, y false en todos los demás casos
+     * @param metadata  metadatos de la respuesta, a guardar cuando se confirme la copia
+     * @return La descarga
      */
-    private static boolean saveCached(int stationId, boolean shortTerm, InputStream rss, File cacheDir) {
-        File dataDir = new File(cacheDir, DATA_DIR);
-        try {
-            if (!dataDir.exists()) {
-                Log.d("OTEMPO", "*** CREATING " + dataDir);
-                dataDir.mkdirs();
-            }
-            File cache = new File(dataDir, makeFileName(stationId, shortTerm));
-            cache.getParentFile().mkdirs();
-            //cache.createNewFile();
-            OutputStream outputStream = new FileOutputStream(cache);
-            byte[] buffer = new byte[4096];
-            @SuppressWarnings("UnusedAssignment") int n = 0;
-            while (-1 != (n = rss.read(buffer))) {
-                outputStream.write(buffer, 0, n);
-            }
-            outputStream.close();
-            return true;
-        } catch (FileNotFoundException e) {
-            Log.e("OTempo", e.getMessage(), e);
-            return false;
-        } catch (IOException e) {
-            Log.e("OTempo", e.getMessage(), e);
-            return false;
+    private static FeedDownload startDownload(int stationId, boolean shortTerm, InputStream rss, Properties metadata) {
+        int format = 0;
+        if (_compressStorage) {
+            format = _useDictionary ? FeedPack.FLAG_DICTIONARY : FeedPack.FLAG_COMPRESSED;
         }
+        return new FeedDownload(rss, format, stationId, shortTerm, metadata);
     }
 
     /**
@@ -153,32 +886,279 @@ public class StationCache {
     }
 
     /**
+     * Lee los metadatos de una copia suelta de versiones anteriores
+     *
+     * @return Los metadatos, vacíos si no hay o no se pueden leer
+     */
+    private static Properties loadMetadata(File file) {
+        Properties metadata = new Properties();
+        if (!file.exists()) {
+            return metadata;
+        }
+        try {
+            InputStream stream = new FileInputStream(file);
+            try {
+                metadata.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w("OTempo", "Unable to read cache metadata " + file, e);
+        }
+        return metadata;
+    }
+
+    /**
+     * @return El valor numérico de una clave de metadatos, o 0 si no existe o no es válido
+     */
+    private static long getLongMetadata(Properties metadata, String key) {
+        try {
+            return Long.parseLong(metadata.getProperty(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Obtiene el RSS de una estación directamente desde Internet. Si un servidor falla por algo
+     * transitorio se pasa al siguiente, y cuando han fallado todos se reintenta con esperas
+     * crecientes (y algo aleatorias). Si el cortacircuitos está abierto ni siquiera se intenta,
+     * para que se sirva la copia de la SD.
+     *
      * @param stationId ID de la estación
-     * @return Obtiene el RSS de una estación directamente desde Internet
+     * @return El RSS de la estación, o null si no se pudo obtener
      */
     @Nullable
-    private static InputStream getFromInternet(int stationId, boolean shortTerm, File cacheDir) {
+    private static CachedFeed getFromInternet(int stationId, boolean shortTerm, File cacheDir) {
+        if (!_circuitBreaker.allowRequest()) {
+            Log.d("OTempo", "Circuit open, not requesting station " + stationId);
+            return null;
+        }
         try {
-            URL url;
-            if (shortTerm) {
-                url = new URL("http://servizos.meteogalicia.es/rss/predicion/rssLocalidades.action?idZona=" + stationId + "&dia=-1");
-            } else {
-                url = new URL("http://servizos.meteogalicia.es/rss/predicion/rssConcellosMPrazo.action?idZona=" + stationId + "&dia=-1");
+            OriginSelector origins = _origins;
+            // Orígenes que ya han fallado en esta ronda: se prueba otro antes de esperar para reintentar
+            Set<String> failed = new HashSet<>();
+            for (int attempt = 0; ; ) {
+                String origin = origins.choose(failed);
+                if (origin == null) {
+                    failed.clear();
+                    origin = origins.choose(failed);
+                }
+                long start = System.nanoTime();
+                try {
+                    CachedFeed feed = requestFeed(origin, stationId, shortTerm, cacheDir);
+                    origins.recordSuccess(origin, (System.nanoTime() - start) / 1000000);
+                    _circuitBreaker.recordSuccess();
+                    return feed;
+                } catch (MalformedURLException e) {
+                    Log.e("OTempo", "BAD URL: " + e.getMessage(), e);
+                    _circuitBreaker.recordSuccess();
+                    return null;
+                } catch (HttpStatusException e) {
+                    Log.e("OTempo", "HTTP error: " + e.getMessage(), e);
+                    if (!e.isTransient()) {
+                        // El servidor responde, así que no cuenta para el cortacircuitos
+                        origins.recordSuccess(origin, (System.nanoTime() - start) / 1000000);
+                        _circuitBreaker.recordSuccess();
+                        getNegativeCache(cacheDir).recordFailure(stationId, shortTerm, "HTTP " + e.getStatusCode());
+                        return null;
+                    }
+                    origins.recordFailure(origin);
+                    failed.add(origin);
+                    if (origins.choose(failed) != null) {
+                        Log.d("OTempo", "Failing over from " + origin);
+                    } else if (attempt >= _maxRetries || !waitBeforeRetry(attempt)) {
+                        _circuitBreaker.recordFailure();
+                        getNegativeCache(cacheDir).recordFailure(stationId, shortTerm, "HTTP " + e.getStatusCode());
+                        return null;
+                    } else {
+                        attempt++;
+                    }
+                } catch (IOException e) {
+                    Log.e("OTempo", "IOException: " + e.getMessage(), e);
+                    origins.recordFailure(origin);
+                    failed.add(origin);
+                    if (origins.choose(failed) != null) {
+                        Log.d("OTempo", "Failing over from " + origin);
+                    } else if (attempt >= _maxRetries || !waitBeforeRetry(attempt)) {
+                        _circuitBreaker.recordFailure();
+                        return null;
+                    } else {
+                        attempt++;
+                    }
+                }
             }
-            URLConnection conn = url.openConnection();
-            InputStream stream = conn.getInputStream();
-            if (saveCached(stationId, shortTerm, stream, cacheDir)) {
-                return getFromStorage(stationId, shortTerm, cacheDir);
-            } else {
-                return stream;
+        } finally {
+            // Una petición de prueba que acaba con una excepción inesperada no deja el circuito abierto para siempre
+            _circuitBreaker.releaseProbe();
+        }
+    }
+
+    /**
+     * Espera antes de un reintento: exponencial en el número de intento, con una parte aleatoria
+     * para que varias peticiones fallidas a la vez no reintenten todas en el mismo instante.
+     *
+     * @param attempt Intento que acaba de fallar (empezando en 0)
+     * @return false si se interrumpió la espera, y por tanto no se debe reintentar
+     */
+    private static boolean waitBeforeRetry(int attempt) {
+        long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << attempt);
+        delay = delay / 2 + (long) (_random.nextDouble() * delay / 2);
+        _retryCount.incrementAndGet();
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Pide el RSS de una estación a meteogalicia (o a un espejo). Si ya tenemos una copia, se
+     * pide de forma condicional (If-None-Match / If-Modified-Since), y si el servidor responde
+     * que no ha cambiado, se renueva la copia local sin volver a descargarla.
+     *
+     * @param origin    Dirección base del servidor
+     * @param stationId ID de la estación
+     * @return El RSS de la estación (descargándose), o null si no se pudo leer de la SD tras renovarlo
+     */
+    @Nullable
+    private static CachedFeed requestFeed(String origin, int stationId, boolean shortTerm, File cacheDir) throws IOException {
+        String url = makeFeedUrl(origin, stationId, shortTerm);
+        Map<String, String> headers = new HashMap<>();
+        // Al pedirlo nosotros, HttpURLConnection ya no descomprime solo: lo hacemos en decodeContent
+        headers.put("Accept-Encoding", "gzip, deflate");
+        FeedPack pack = getPack(cacheDir);
+        String[] validators = pack != null ? pack.readValidators(stationId, shortTerm) : null;
+        boolean hasCopy = validators != null;
+        if (hasCopy) {
+            if (validators[0] != null) {
+                headers.put("If-None-Match", validators[0]);
             }
-        } catch (MalformedURLException e) {
-            Log.e("OTempo", "BAD URL: " + e.getMessage(), e);
-            return null;
-        } catch (IOException e) {
-            Log.e("OTempo", "IOException: " + e.getMessage(), e);
-            return null;
+            if (validators[1] != null) {
+                headers.put("If-Modified-Since", validators[1]);
+            }
+        }
+        FeedTransport.Response response = _transport.get(url, headers, _connectTimeout, _readTimeout);
+        int status = response.getStatusCode();
+        if (hasCopy && status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            long now = new Date().getTime();
+            long expires = now + getFreshnessLifetime(response, shortTerm);
+            response.close();
+            pack.touch(stationId, shortTerm, now, expires);
+            InputStream stored = getFromStorage(stationId, shortTerm, cacheDir);
+            return stored != null ? new CachedFeed(stored, true) : null;
+        }
+        if (status >= 400) {
+            response.close();
+            throw new HttpStatusException(status, url);
+        }
+        Properties newMetadata = new Properties();
+        String etag = response.getHeader("ETag");
+        if (etag != null) {
+            newMetadata.setProperty(META_ETAG, etag);
+        }
+        String lastModified = response.getHeader("Last-Modified");
+        if (lastModified != null) {
+            newMetadata.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        long now = new Date().getTime();
+        newMetadata.setProperty(META_VALIDATED, String.valueOf(now));
+        newMetadata.setProperty(META_EXPIRES, String.valueOf(now + getFreshnessLifetime(response, shortTerm)));
+        // El cuerpo se parsea según llega de la red, y se guarda a la vez en un temporal.
+        // Al terminar se lee hasta el final y se cierra, con lo que la conexión se puede reutilizar
+        InputStream body = new MeteredInputStream(response.getBody(), getDataUsage(cacheDir), stationId, shortTerm);
+        InputStream stream = decodeContent(response, body);
+        return new CachedFeed(startDownload(stationId, shortTerm, stream, newMetadata));
+    }
+
+    /**
+     * @return La dirección del RSS de una estación en un servidor
+     */
+    private static String makeFeedUrl(String origin, int stationId, boolean shortTerm) {
+        if (shortTerm) {
+            return origin + "rssLocalidades.action?idZona=" + stationId + "&dia=-1";
+        } else {
+            return origin + "rssConcellosMPrazo.action?idZona=" + stationId + "&dia=-1";
+        }
+    }
+
+    /**
+     * Descomprime la respuesta según la cabecera Content-Encoding que haya enviado el servidor
+     *
+     * @param response Respuesta del servidor
+     * @param stream   Flujo de la respuesta tal como llega por la red
+     * @return Un flujo del que leer el RSS sin comprimir
+     */
+    private static InputStream decodeContent(FeedTransport.Response response, InputStream stream) throws IOException {
+        String encoding = response.getHeader("Content-Encoding");
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            return new GZIPInputStream(stream);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            return new InflaterInputStream(stream);
         }
+        return stream;
     }
 
+
+    /**
+     * Cuenta los bytes que se leen de la red (tal como llegan, comprimidos o no) y los apunta en
+     * DataUsage al cerrarse
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        /**
+         * @param stationId Estación a la que apuntar los bytes, o -1 si no son de un RSS concreto
+         */
+        MeteredInputStream(InputStream in, DataUsage dataUsage, int stationId, boolean shortTerm) {
+            super(in);
+            _usage = dataUsage;
+            _stationId = stationId;
+            _shortTerm = shortTerm;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                _bytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                _bytes += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            _bytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!_recorded) {
+                _recorded = true;
+                if (_stationId >= 0) {
+                    _usage.recordFeed(_stationId, _shortTerm, _bytes, _networkType);
+                } else {
+                    _usage.recordOther(_bytes, _networkType);
+                }
+            }
+            super.close();
+        }
+
+        private final DataUsage _usage; ///< Dónde apuntar los bytes
+        private final int _stationId; ///< Estación a la que apuntarlos, o -1
+        private final boolean _shortTerm; ///< RSS a corto o a medio plazo
+        private long _bytes = 0; ///< Bytes leídos hasta ahora
+        private boolean _recorded = false; ///< Ya se apuntaron
+    }
 }
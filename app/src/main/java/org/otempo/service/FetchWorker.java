@@ -10,6 +10,8 @@ import android.util.Log;
 
 import org.otempo.model.Station;
 import org.otempo.rss.PredictionsParser;
+import org.otempo.rss.StationCache;
+import org.otempo.util.NetworkUtils;
 
 import java.io.IOException;
 
@@ -34,6 +36,7 @@ public class FetchWorker extends Worker {
         if (station == null) {
             return Result.failure();
         }
+        StationCache.setNetworkType(NetworkUtils.getNetworkType(getApplicationContext()));
         try {
             PredictionsParser.parse(station, getApplicationContext().getCacheDir(), false);
         } catch (IOException e) {
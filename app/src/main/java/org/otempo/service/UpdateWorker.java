@@ -1,27 +1,97 @@
 package org.otempo.service;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 import android.util.Log;
 
 import org.otempo.model.FavoritesStationComparator;
 import org.otempo.model.Station;
+import org.otempo.rss.DataUsage;
 import org.otempo.rss.PredictionsParser;
+import org.otempo.rss.RefreshPolicy;
+import org.otempo.rss.StationCache;
+import org.otempo.util.NetworkUtils;
 import org.otempo.view.Preferences;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.Worker;
+import androidx.work.WorkManager;
 import androidx.work.WorkerParameters;
 
 /**
  * Station updater based on WorkerManager
+ * Cada tipo de RSS se actualiza con su propio worker, según su política de refresco. En lugar de
+ * ejecutarse periódicamente, cada ejecución programa la siguiente para justo después de la próxima
+ * publicación esperada de meteogalicia (ver PublicationSchedule), y mientras no se conozcan las
+ * horas de publicación, al cabo del periodo de actualización elegido por el usuario.
  */
 public class UpdateWorker extends Worker {
+    /// Dato de entrada: true para actualizar los RSS a corto plazo, false para los de medio plazo
+    private static final String KEY_SHORT_TERM = "shortTerm";
+    /// Etiqueta de todas las actualizaciones en segundo plano
+    private static final String TAG = "StationUpdates";
+
+    /**
+     * Programa la próxima actualización de uno de los tipos de RSS
+     *
+     * @param shortTerm RSS a corto o a medio plazo
+     */
+    public static void schedule(Context context, boolean shortTerm) {
+        long now = new Date().getTime();
+        long nextSync = StationCache.getPublicationSchedule(context.getCacheDir())
+                .getNextSync(shortTerm, now, getUpdatePeriod(context, shortTerm));
+        long delay = Math.max(0, nextSync - now);
+        Log.d("OTempo", "Next " + (shortTerm ? "short" : "medium") + " term update in " + delay / 60000 + " minutes");
+        // Con el mismo nombre que el trabajo periódico de las versiones anteriores, que así queda
+        // sustituido; y nunca hay más de una actualización pendiente de cada tipo
+        WorkManager.getInstance().enqueueUniqueWork(shortTerm ? "SyncStations" : "SyncStationsMediumTerm",
+                ExistingWorkPolicy.REPLACE, makeRequest(shortTerm, delay));
+    }
+
+    /**
+     * Prepara una actualización de uno de los tipos de RSS
+     *
+     * @param shortTerm RSS a corto o a medio plazo
+     * @param delay     Cuánto esperar antes de actualizar (en ms)
+     */
+    private static OneTimeWorkRequest makeRequest(boolean shortTerm, long delay) {
+        RefreshPolicy policy = StationCache.getRefreshPolicy(shortTerm);
+        return new OneTimeWorkRequest.Builder(UpdateWorker.class)
+                .setInitialDelay(delay, TimeUnit.MILLISECONDS)
+                .setInputData(new Data.Builder()
+                        .putBoolean(KEY_SHORT_TERM, shortTerm)
+                        .build())
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(policy.requiresUnmetered() ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                        .setRequiresBatteryNotLow(true)
+                        .build())
+                .addTag(TAG)
+                .build();
+    }
+
+    /**
+     * @return Periodo de actualización elegido por el usuario (en ms), multiplicado según la
+     * política de refresco del RSS
+     */
+    private static long getUpdatePeriod(Context context, boolean shortTerm) {
+        long updatePeriod = Long.valueOf(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(Preferences.PREF_UPDATE_PERIOD, Preferences.DEFAULT_UPDATE_PERIOD));
+        return updatePeriod * StationCache.getRefreshPolicy(shortTerm).getPeriodFactor();
+    }
+
     public UpdateWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
     }
@@ -29,25 +99,57 @@ public class UpdateWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
+        StationCache.setNetworkType(NetworkUtils.getNetworkType(getApplicationContext()));
+        boolean shortTerm = getInputData().getBoolean(KEY_SHORT_TERM, true);
         try {
-            List<Station> stationsToUpdate = getStationsToUpdate();
-            Log.d("OTempo", "Updating " + stationsToUpdate.size() + " stations");
+            List<Station> stationsToUpdate = getStationsToUpdate(shortTerm);
+            Log.d("OTempo", "Updating " + (shortTerm ? "short" : "medium") + " term feeds of " + stationsToUpdate.size() + " stations");
+            // Si hay un proxy de lotes configurado, todas las estaciones en una sola petición
+            List<Integer> stationIds = new ArrayList<>();
             for (Station station : stationsToUpdate) {
-                PredictionsParser.parse(station, getApplicationContext().getCacheDir(), false);
+                stationIds.add(station.getId());
             }
+            StationCache.prefetchBatch(stationIds, shortTerm, !shortTerm, getApplicationContext().getCacheDir());
+            for (Station station : stationsToUpdate) {
+                // Si meteogalicia no responde, no tiene sentido seguir gastando el tiempo del worker
+                if (StationCache.getCircuitBreaker().isOpen()) {
+                    Log.d("OTempo", "Meteogalicia unavailable, stopping update after "
+                            + StationCache.getRetryCount() + " retries");
+                    break;
+                }
+                PredictionsParser.parse(station, getApplicationContext().getCacheDir(), false, shortTerm, !shortTerm);
+            }
+            Log.d("OTempo", "Cache stats: " + StationCache.getStats());
         } catch (IOException e) {
             return Result.failure();
+        } finally {
+            // Lo que trajo el lote y no se llegó a usar (por ej. si se paró antes de tiempo) no debe servirse más tarde
+            StationCache.discardPrefetched();
+            // Si nos han parado (por ej. al abrir la aplicación, que reemplaza este trabajo), quien nos
+            // reemplazó ya programó la siguiente
+            if (!isStopped()) {
+                schedule(getApplicationContext(), shortTerm);
+            }
         }
         return Result.success();
     }
 
-    private List<Station> getStationsToUpdate() {
+    private List<Station> getStationsToUpdate(boolean shortTerm) {
         int updateAmount = maxStationsToUpdate();
         // Las estaciones ya están ordenadas según el criterio del usuario, así que se van a
         // actualizar las más prioritarias para él.
         List<Station> known = Station.getKnownStations();
         List<Station> updated = new ArrayList<>();
+        // Si hay límite de datos, sólo las que quepan en lo que queda del periodo, por orden de prioridad
+        DataUsage usage = StationCache.getDataUsage(getApplicationContext().getCacheDir());
+        long remaining = remainingDataBudget(usage);
         for (int i = 0; i < updateAmount && i < known.size(); i++) {
+            long cost = usage.estimateFeedCost(known.get(i).getId(), shortTerm);
+            if (cost > remaining) {
+                Log.d("OTempo", "Data budget reached, updating only " + updated.size() + " stations");
+                break;
+            }
+            remaining -= cost;
             updated.add(known.get(i));
         }
 
@@ -58,6 +160,24 @@ public class UpdateWorker extends Worker {
 
     }
 
+    /**
+     * @return Bytes que se pueden descargar todavía en el periodo en curso (Long.MAX_VALUE si no hay límite)
+     */
+    private long remainingDataBudget(DataUsage usage) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        String period = prefs.getString(Preferences.PREF_DATA_BUDGET_PERIOD, Preferences.DEFAULT_DATA_BUDGET_PERIOD);
+        long used;
+        if (period.equals("daily")) {
+            used = usage.getToday();
+        } else if (period.equals("monthly")) {
+            used = usage.getThisMonth();
+        } else {
+            return Long.MAX_VALUE;
+        }
+        long budget = Long.valueOf(prefs.getString(Preferences.PREF_DATA_BUDGET, Preferences.DEFAULT_DATA_BUDGET)) * 1024 * 1024;
+        return Math.max(0, budget - used);
+    }
+
     private int maxStationsToUpdate() {
         int updateAmount = Integer.valueOf(
                 PreferenceManager.getDefaultSharedPreferences(getApplicationContext())
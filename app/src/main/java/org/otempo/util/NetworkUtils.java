@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2010-2011 Ruben Lopez
+ * 
+ * This file is part of OTempo - Galician Weather
+ * 
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.otempo.util;
+
+import org.otempo.rss.DataUsage;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Herramientas para saber por qué red se está conectado
+ */
+public class NetworkUtils {
+    /**
+     * @return El tipo de la red activa, tal como se cuenta en DataUsage (DataUsage.NETWORK_*)
+     */
+    public static String getNetworkType(Context context) {
+        ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = connectivity != null ? connectivity.getActiveNetworkInfo() : null;
+        if (info == null) {
+            return DataUsage.NETWORK_OTHER;
+        }
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return DataUsage.NETWORK_WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return DataUsage.NETWORK_MOBILE;
+            default:
+                return DataUsage.NETWORK_OTHER;
+        }
+    }
+}
@@ -22,6 +22,8 @@ import java.util.List;
 
 import org.otempo.R;
 import org.otempo.model.Station;
+import org.otempo.rss.DataUsage;
+import org.otempo.rss.StationCache;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -34,6 +36,7 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
+import android.text.format.Formatter;
 
 /**
  * Actividad para gestionar las preferencias
@@ -49,6 +52,12 @@ public class Preferences extends PreferenceActivity {
     public static final String PREF_BACKGROUND = "background";
     public static final String PREF_BACKGROUND_USER_IMAGE = "bgUserImage";
     public static final String PREF_UPDATE_PERIOD = "updatePeriod";
+    public static final String PREF_DATA_BUDGET_PERIOD = "dataBudgetPeriod"; // none, daily o monthly
+    public static final String PREF_DATA_BUDGET = "dataBudget"; // En MB
+    public static final String PREF_DATA_USAGE = "dataUsage";
+    public static final String DEFAULT_UPDATE_PERIOD = "3600000"; // En ms
+    public static final String DEFAULT_DATA_BUDGET_PERIOD = "none";
+    public static final String DEFAULT_DATA_BUDGET = "10";
     public static final String DEFAULT_STATION_ORDERING = "alphabetic";
 
     @Override
@@ -79,6 +88,23 @@ public class Preferences extends PreferenceActivity {
             }
         });
 
+        String budgetPeriod = getPreferenceManager().getSharedPreferences().getString(PREF_DATA_BUDGET_PERIOD, DEFAULT_DATA_BUDGET_PERIOD);
+        findPreference(PREF_DATA_BUDGET).setEnabled(!budgetPeriod.equals(DEFAULT_DATA_BUDGET_PERIOD));
+        findPreference(PREF_DATA_BUDGET_PERIOD).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference arg0, Object arg1) {
+                findPreference(PREF_DATA_BUDGET).setEnabled(!arg1.equals(DEFAULT_DATA_BUDGET_PERIOD));
+                return true;
+            }
+        });
+
+        DataUsage usage = StationCache.getDataUsage(getCacheDir());
+        findPreference(PREF_DATA_USAGE).setSummary(getString(R.string.data_usage_summary,
+                Formatter.formatShortFileSize(this, usage.getToday()),
+                Formatter.formatShortFileSize(this, usage.getThisMonth()),
+                Formatter.formatShortFileSize(this, usage.getByNetwork(DataUsage.NETWORK_WIFI)),
+                Formatter.formatShortFileSize(this, usage.getByNetwork(DataUsage.NETWORK_MOBILE))));
+
         findPreference(PREF_BACKGROUND).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
 			public boolean onPreferenceChange(Preference arg0, Object arg1) {
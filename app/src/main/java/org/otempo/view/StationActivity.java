@@ -75,28 +75,25 @@ import org.otempo.model.StationMediumTermPrediction;
 import org.otempo.model.StationPrediction;
 import org.otempo.model.StationPredictionVisitor;
 import org.otempo.model.StationShortTermPrediction;
+import org.otempo.rss.PredictionsParser;
+import org.otempo.rss.StationCache;
 import org.otempo.service.FetchWorker;
 import org.otempo.service.UpdateWorker;
 import org.otempo.util.BitmapUtils;
 import org.otempo.util.DateUtils;
 import org.otempo.util.LayoutUtils;
+import org.otempo.util.NetworkUtils;
 import org.otempo.util.Nullness;
 import org.otempo.util.ResourceUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.TimeUnit;
-
-import androidx.work.Constraints;
-import androidx.work.ExistingPeriodicWorkPolicy;
-import androidx.work.NetworkType;
-import androidx.work.PeriodicWorkRequest;
-import androidx.work.WorkManager;
 
 /**
  * Actividad principal, donde se muestran los datos de la estación actual
@@ -111,18 +108,10 @@ public class StationActivity extends Activity implements OnSharedPreferenceChang
         super.onCreate(savedInstanceState);
         System.gc();
         lastUpdateFormat = new SimpleDateFormat(getString(R.string.predicted_at), Locale.getDefault());
-        PeriodicWorkRequest updateWork = new PeriodicWorkRequest.Builder(UpdateWorker.class, updatePeriodMs(),
-                TimeUnit.MILLISECONDS)
-                .setConstraints(new Constraints.Builder()
-                        .setRequiredNetworkType(NetworkType.UNMETERED)
-                        .setRequiresBatteryNotLow(true)
-                        .build())
-                .build();
-        // Make sure there is nothing else running at this point. Not even the widget. The attention
-        // of the user is on the activity.
-        WorkManager.getInstance().cancelAllWork();
-        // Now start polling in the background
-        WorkManager.getInstance().enqueueUniquePeriodicWork("SyncStations", ExistingPeriodicWorkPolicy.KEEP, updateWork);
+        // Schedule the background updates, each one schedules the next. This replaces any pending
+        // update of the same kind, so there is never more than one.
+        UpdateWorker.schedule(getApplicationContext(), true);
+        UpdateWorker.schedule(getApplicationContext(), false);
 
         setContentView(R.layout.main);
 
@@ -172,12 +161,6 @@ public class StationActivity extends Activity implements OnSharedPreferenceChang
         }
     }
 
-    int updatePeriodMs() {
-        return Integer.valueOf(
-                PreferenceManager.getDefaultSharedPreferences(getApplicationContext())
-                        .getString(Preferences.PREF_UPDATE_PERIOD, "3600000"));
-    }
-
     static class SideMenuItem {
         final int id;
         final int title_id;
@@ -243,9 +226,10 @@ public class StationActivity extends Activity implements OnSharedPreferenceChang
     protected void onResume() {
         super.onResume();
         maybeRequestLocationPermission();
+        StationCache.setNetworkType(NetworkUtils.getNetworkType(this));
         Station station = _stationManager.getStation();
         if (station != null) {
-            fetchThenShow(station, false);
+            showThenRevalidate(station);
         }
     }
 
@@ -572,8 +556,7 @@ public class StationActivity extends Activity implements OnSharedPreferenceChang
                 _skipDialog = false;
             } else {
                 if (!this.isFinishing()) {
-                    showDialog(DIALOG_LOADING_ID);
-                    fetchThenShow(currentStation, false);
+                    showThenRevalidate(currentStation);
                 }
             }
         }
@@ -662,6 +645,48 @@ public class StationActivity extends Activity implements OnSharedPreferenceChang
         }
     }
 
+    /**
+     * Muestra enseguida lo que haya en la SD para la estación, y la revalida en segundo plano: si
+     * cambia, se vuelve a pintar. El diálogo de carga sólo aparece si no hay nada que mostrar.
+     */
+    private void showThenRevalidate(final Station station) {
+        boolean available = PredictionsParser.loadThenRevalidate(station, getCacheDir(), new PredictionsParser.RevalidationListener() {
+            @Override
+            public void onChanged(final Station changed) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d("OTempo", "Revalidated data changed for " + changed.getName());
+                        if (changed == _stationManager.getStation()) {
+                            updateLayout();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onError(final Station failed, IOException e) {
+                Log.e("OTempo", "Unable to revalidate activity data", e);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Si se está mostrando la copia de la SD, no hace falta molestar
+                        if (failed.getPredictions().size() == 0 && _dialogLoadingShown) {
+                            removeDialog(DIALOG_LOADING_ID);
+                            _dialogLoadingShown = false;
+                            Toast.makeText(getApplicationContext(), R.string.internet_error, Toast.LENGTH_LONG).show();
+                        }
+                    }
+                });
+            }
+        });
+        if (available) {
+            updateLayout();
+        } else if (!isFinishing()) {
+            showDialog(DIALOG_LOADING_ID);
+        }
+    }
+
     private void fetchThenShow(final Station station, final boolean checkIfWasAlreadyLatest) {
         final Calendar previousPredictionTime = station.getLastCreationDate();
         Log.d("OTempo", "Starting to fetch activity data");
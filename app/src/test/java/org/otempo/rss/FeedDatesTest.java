@@ -0,0 +1,103 @@
+package org.otempo.rss;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.otempo.model.StationPrediction;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FeedDates debe dar lo mismo que el SimpleDateFormat de cada RSS al que sustituye
+ */
+public class FeedDatesTest {
+    private static final Locale SPANISH = new Locale("es");
+    /// Formatos que se decodifican directamente, y alguno que se delega en SimpleDateFormat
+    private static final String[] PATTERNS = {"dd/MM/yyyy", FeedDates.CREATION_DATE_FORMAT, "yyyy-MM-dd",
+            "dd/MM/yyyy HH:mm", "ddMMyyyy", "dd MMM yyyy", "dd/MM/yy"};
+
+    @Before
+    public void setUp() {
+        _defaultZone = TimeZone.getDefault();
+        // Una zona con horario de verano, para que la diferencia con UTC no sea siempre la misma
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Madrid"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(_defaultZone);
+    }
+
+    @Test
+    public void convertsCreationDatesToUtc() throws Exception {
+        SimpleDateFormat local = new SimpleDateFormat(FeedDates.CREATION_DATE_FORMAT, Locale.US);
+        SimpleDateFormat utc = new SimpleDateFormat(FeedDates.CREATION_DATE_FORMAT, Locale.US);
+        utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (String text : new String[]{"2019-01-15T10:00:00Z", "2019-07-15T10:00:00Z", "2019-10-27T23:30:00Z"}) {
+            long created = local.parse(text).getTime();
+            assertEquals(text, utc.parse(text).getTime(), FeedDates.creationDateToUtc(created));
+        }
+    }
+
+    @Test
+    public void matchesSimpleDateFormatOnRandomDates() {
+        Random random = new Random(42);
+        for (String pattern : PATTERNS) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, SPANISH);
+            for (int i = 0; i < 2000; i++) {
+                // Entre 2000 y 2030
+                String text = format.format(new Date(946684800000L + (long) (random.nextDouble() * 946684800000L)));
+                assertEquals(pattern + " " + text, expected(text, pattern), FeedDates.parse(text, pattern));
+            }
+        }
+    }
+
+    @Test
+    public void matchesSimpleDateFormatOnOddInput() {
+        String[] texts = {"1/2/2019", "01/02/19", "32/01/2019", "01/13/2019", "00/00/0000", "", "01/02", "01/02/",
+                "aa/bb/cccc", "01/02/2019 sobra", "-1/02/2019", "01/-2/2019", "01/02/20190", " 01/02/2019",
+                "01022019", "0102201", "2019-01-15T25:61:00Z", "2019-01-15T10:00:00", "2019-1-5T1:2:3Z",
+                "01/02/2019 7:05", "01/02/2019 07", "15 xan 2019", "15 ene 2019", "99999999999/01/2019"};
+        for (String pattern : PATTERNS) {
+            for (String text : texts) {
+                assertEquals(pattern + " [" + text + "]", expected(text, pattern), FeedDates.parse(text, pattern));
+            }
+        }
+    }
+
+    @Test
+    public void treatsMissingOrBadPatternsAsUnknown() {
+        assertEquals(StationPrediction.UNKNOWN_DATE, FeedDates.parse("01/02/2019", null));
+        assertEquals(StationPrediction.UNKNOWN_DATE, FeedDates.parse("01/02/2019", "dd/MM/yyyy'"));
+        assertEquals(StationPrediction.UNKNOWN_DATE, FeedDates.parse("01/02/2019", "qq/MM/yyyy"));
+    }
+
+    @Test
+    public void followsTimeZoneChanges() {
+        long madrid = FeedDates.parse("15/01/2019", "dd/MM/yyyy");
+        long madridFallback = FeedDates.parse("15 ene 2019", "dd MMM yyyy");
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        assertEquals(madrid + 3600 * 1000, FeedDates.parse("15/01/2019", "dd/MM/yyyy"));
+        assertEquals(madridFallback + 3600 * 1000, FeedDates.parse("15 ene 2019", "dd MMM yyyy"));
+    }
+
+    /**
+     * @return Lo que daba el código anterior: un SimpleDateFormat nuevo en la zona horaria actual
+     */
+    private static long expected(String text, String pattern) {
+        try {
+            return new SimpleDateFormat(pattern, SPANISH).parse(text).getTime();
+        } catch (ParseException | RuntimeException e) {
+            return StationPrediction.UNKNOWN_DATE;
+        }
+    }
+
+    private TimeZone _defaultZone;
+}
@@ -0,0 +1,174 @@
+package org.otempo.rss;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FeedPackTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int STATIONS = 40;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        _file = new File(_folder.getRoot(), "feeds.pack");
+        _pack = new FeedPack(_file);
+    }
+
+    @Test
+    public void readsCopiesBackAfterCompaction() throws IOException {
+        for (int version = 0; version < 20; version++) {
+            for (int station = 1; station <= STATIONS; station++) {
+                put(station, version);
+            }
+        }
+        _pack.compact();
+        for (int station = 1; station <= STATIONS; station++) {
+            assertArrayEquals(makeBody(station, 19), read(station));
+            assertArrayEquals(new String[]{"\"" + station + "-19\"", null}, _pack.readValidators(station, true));
+        }
+        assertNull(_pack.openVerified(STATIONS + 1, true, 0));
+        assertNull(_pack.readValidators(STATIONS + 1, true));
+    }
+
+    @Test
+    public void readsStayConsistentWhileCompacting() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread compactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        _pack.compact();
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        compactor.start();
+        try {
+            for (int version = 0; version < 30; version++) {
+                for (int station = 1; station <= STATIONS; station++) {
+                    put(station, version);
+                }
+                for (int station = 1; station <= STATIONS; station++) {
+                    // Siempre la copia vigente: ni bytes de otra, ni una vuelta atrás por un CRC mal calculado
+                    assertArrayEquals(makeBody(station, version), read(station));
+                    assertEquals("\"" + station + "-" + version + "\"", _pack.readValidators(station, true)[0]);
+                }
+            }
+        } finally {
+            done.set(true);
+            compactor.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void fallsBackToThePreviousCopyWhenCorrupt() throws IOException {
+        put(1, 0);
+        put(1, 1);
+        FeedPack.Entry entry = _pack.find(1, true);
+        assertNotNull(entry);
+        corrupt(entry.offset + entry.length - 1);
+        assertArrayEquals(makeBody(1, 0), read(1));
+        // La anterior queda como no validada, para revalidarla cuanto antes
+        assertEquals(0, _pack.find(1, true).validated);
+    }
+
+    @Test
+    public void dropsTheCopyWhenNothingIsIntact() throws IOException {
+        put(1, 0);
+        FeedPack.Entry entry = _pack.find(1, true);
+        assertNotNull(entry);
+        corrupt(entry.offset + entry.length - 1);
+        assertNull(_pack.openVerified(1, true, 0));
+        assertNull(_pack.find(1, true));
+    }
+
+    @Test
+    public void removeFreesTheCopyAndThePreviousOne() {
+        put(1, 0);
+        put(1, 1);
+        put(2, 0);
+        long live = _pack.getLiveBytes();
+        FeedPack.Entry entry = _pack.find(1, true);
+        assertNotNull(entry);
+        int freed = _pack.remove(1, true);
+        // Cada copia ocupa el RSS más sus validadores
+        assertTrue(freed > entry.length);
+        assertTrue(freed >= makeBody(1, 0).length + makeBody(1, 1).length);
+        assertEquals(live - freed, _pack.getLiveBytes());
+        assertEquals(0, _pack.remove(1, true));
+    }
+
+    private void put(int station, int version) {
+        byte[] body = makeBody(station, version);
+        CRC32 hash = new CRC32();
+        hash.update(body, 0, body.length);
+        _pack.put(station, true, body, 0, (int) hash.getValue(), "\"" + station + "-" + version + "\"", null,
+                version + 1, version + 2);
+    }
+
+    private byte[] read(int station) throws IOException {
+        FeedPack.Body body = _pack.openVerified(station, true, 1);
+        assertNotNull(body);
+        InputStream stream = body.stream;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = stream.read(buffer)) != -1) {
+            content.write(buffer, 0, n);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Cambia un byte del fichero por detrás del mapeo, como haría un corte a medio escribir
+     */
+    private void corrupt(long offset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(_file, "rw");
+        try {
+            file.seek(offset);
+            int b = file.read();
+            file.seek(offset);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return Un RSS de tamaño distinto para cada estación y versión, para que las copias no caigan en las mismas posiciones
+     */
+    private static byte[] makeBody(int station, int version) {
+        char[] padding = new char[(station * 37 + version * 11) % 500];
+        Arrays.fill(padding, 'x');
+        return ("<rss station=\"" + station + "\" version=\"" + version + "\">" + new String(padding) + "</rss>").getBytes(UTF8);
+    }
+
+    private File _file;
+    private FeedPack _pack;
+}
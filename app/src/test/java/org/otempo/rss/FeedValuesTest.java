@@ -0,0 +1,99 @@
+package org.otempo.rss;
+
+import org.junit.Test;
+import org.otempo.model.StationPrediction;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * FeedValues debe dar lo mismo que Integer.valueOf y Float.valueOf, a los que sustituye
+ */
+public class FeedValuesTest {
+    private static final String[] ODD_INPUT = {"", "-", "+", "0", "-0", "+7", "007", "12a", "a12", " 12", "12 ",
+            "1.5", "1,5", ".5", "5.", "-.5", "1e3", "1E-2", "NaN", "Infinity", "-Infinity", "0x10", "1.2.3",
+            "999999999", "2147483647", "2147483648", "-2147483648", "-2147483649", "99999999999999999999",
+            "0.1", "0.30000000000000004", "123456789", "1234567890", "3.4028235E38", "1e39", "0.000000000001",
+            "12345.678", "99.999999", "\t3.5\n", "१२"};
+
+    @Test
+    public void parsesIntsLikeIntegerValueOf() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            checkInt(String.valueOf(random.nextInt(i < 50000 ? 1000 : Integer.MAX_VALUE) * (random.nextBoolean() ? 1 : -1)));
+        }
+        for (String text : ODD_INPUT) {
+            checkInt(text);
+        }
+    }
+
+    @Test
+    public void parsesFloatsLikeFloatValueOf() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // Como en los RSS: enteros y decimales con pocas cifras, y alguno con muchas
+            int decimals = random.nextInt(i < 50000 ? 3 : 9);
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+            checkFloat(String.format(Locale.US, "%." + decimals + "f", value));
+        }
+        for (String text : ODD_INPUT) {
+            checkFloat(text);
+        }
+    }
+
+    @Test
+    public void decodesSkyAndWindCodes() {
+        assertSame(StationPrediction.SkyState.CLEAR, FeedValues.parseSkyState("101"));
+        // Los códigos nocturnos son los diurnos más 100
+        assertSame(StationPrediction.SkyState.CLEAR, FeedValues.parseSkyState("201"));
+        assertSame(StationPrediction.SkyState.HAIL, FeedValues.parseSkyState("121"));
+        assertNull(FeedValues.parseSkyState("100"));
+        assertNull(FeedValues.parseSkyState("122"));
+        assertNull(FeedValues.parseSkyState("-9999"));
+        assertNull(FeedValues.parseSkyState("nube"));
+        StationPrediction.WindState[] windStates = StationPrediction.WindState.values();
+        for (int i = 0; i < windStates.length; i++) {
+            assertSame(windStates[i], FeedValues.parseWindState(String.valueOf(299 + i)));
+        }
+        assertNull(FeedValues.parseWindState("298"));
+        assertNull(FeedValues.parseWindState(String.valueOf(299 + windStates.length)));
+        assertNull(FeedValues.parseWindState(""));
+    }
+
+    private static void checkInt(String text) {
+        String expected;
+        try {
+            expected = String.valueOf(Integer.valueOf(text));
+        } catch (NumberFormatException e) {
+            expected = "NumberFormatException";
+        }
+        String actual;
+        try {
+            actual = String.valueOf(FeedValues.parseInt(new StringBuilder(text)));
+        } catch (NumberFormatException e) {
+            actual = "NumberFormatException";
+        }
+        assertEquals("[" + text + "]", expected, actual);
+    }
+
+    private static void checkFloat(String text) {
+        String expected;
+        try {
+            // Comparando los bits, para distinguir 0.0 de -0.0 y cualquier diferencia de redondeo
+            expected = Integer.toHexString(Float.floatToIntBits(Float.valueOf(text)));
+        } catch (NumberFormatException e) {
+            expected = "NumberFormatException";
+        }
+        String actual;
+        try {
+            actual = Integer.toHexString(Float.floatToIntBits(FeedValues.parseFloat(new StringBuilder(text))));
+        } catch (NumberFormatException e) {
+            actual = "NumberFormatException";
+        }
+        assertEquals("[" + text + "]", expected, actual);
+    }
+}
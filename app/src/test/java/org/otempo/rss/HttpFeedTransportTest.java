@@ -0,0 +1,127 @@
+package org.otempo.rss;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.otempo.model.Station;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sincronización contra un servidor local (StubFeedServer), sin conexión a Internet
+ */
+public class HttpFeedTransportTest {
+    private static final int STATIONS = 15;
+    private static final int FIRST_STATION = 91000;
+
+    @Before
+    public void setUp() throws IOException {
+        _server = new StubFeedServer();
+        StationCache.setBaseUrl(_server.getBaseUrl());
+        for (int i = 0; i < STATIONS; i++) {
+            StationCache.removeCached(FIRST_STATION + i, true, _cacheDir);
+            StationCache.removeCached(FIRST_STATION + i, false, _cacheDir);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StationCache.setBaseUrl(null);
+        _server.stop();
+    }
+
+    @Test
+    public void reusesConnectionsAcrossRequests() throws IOException {
+        FeedTransport transport = new HttpFeedTransport();
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < STATIONS; i++) {
+            for (String feed : new String[]{"rssLocalidades.action", "rssConcellosMPrazo.action"}) {
+                FeedTransport.Response response = transport.get(
+                        _server.getBaseUrl() + feed + "?idZona=" + (FIRST_STATION + i) + "&dia=-1", headers, 5000, 5000);
+                assertEquals(200, response.getStatusCode());
+                InputStream body = response.getBody();
+                byte[] buffer = new byte[4096];
+                //noinspection StatementWithEmptyBody
+                while (body.read(buffer) != -1) {
+                }
+                body.close();
+            }
+        }
+        assertEquals(2 * STATIONS, _server.getRequestCount());
+        assertTrue("Opened " + _server.getConnectionCount() + " connections", _server.getConnectionCount() <= 2);
+    }
+
+    @Test
+    public void syncsStationsThroughTheCache() throws IOException {
+        for (int i = 0; i < STATIONS; i++) {
+            Station station = new Station("Stub " + i, FIRST_STATION + i, 0, 0);
+            assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+            assertFalse(station.getPredictions().isEmpty());
+        }
+        assertEquals(2 * STATIONS, _server.getRequestCount());
+        // El RSS de medio plazo se carga en paralelo, así que puede haber alguna conexión más
+        assertTrue("Opened " + _server.getConnectionCount() + " connections", _server.getConnectionCount() <= 4);
+    }
+
+    @Test
+    public void revalidatesWithConditionalRequests() throws IOException {
+        Station station = new Station("Stub", FIRST_STATION, 0, 0);
+        // Sin frescura, cada carga pregunta otra vez al servidor
+        StationCache.setStorageAgeBounds(0, 0);
+        try {
+            assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+            // El servidor responde 304 a los dos RSS
+            assertFalse(PredictionsParser.parse(station, _cacheDir, false));
+            assertEquals(4, _server.getRequestCount());
+            _server.setVersion(2);
+            assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+            assertEquals(6, _server.getRequestCount());
+        } finally {
+            StationCache.setRefreshPolicy(true, RefreshPolicy.SHORT_TERM);
+            StationCache.setRefreshPolicy(false, RefreshPolicy.MEDIUM_TERM);
+        }
+    }
+
+    @Test
+    public void keepsNewValidatorsOfIdenticalContent() throws IOException {
+        Station station = new Station("Stub", FIRST_STATION + 1, 0, 0);
+        StationCache.setStorageAgeBounds(0, 0);
+        try {
+            assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+            _server.renewEtags();
+            final AtomicInteger parsed = new AtomicInteger();
+            PredictionsParser.setParseEngine(new ParseEngine() {
+                @Override
+                public void parse(InputStream in, PredictionSAXHandler handler) throws IOException, SAXException {
+                    parsed.incrementAndGet();
+                    ParseEngine.SAX.parse(in, handler);
+                }
+            });
+            // Llega el RSS entero, pero es el mismo: no hay nada que actualizar, ni que parsear
+            assertFalse(PredictionsParser.parse(station, _cacheDir, false));
+            assertEquals(4, _server.getFullResponseCount());
+            assertEquals(0, parsed.get());
+            // Y la copia guardada tiene ya los ETag nuevos, así que la siguiente vez basta con un 304
+            assertFalse(PredictionsParser.parse(station, _cacheDir, false));
+            assertEquals(6, _server.getRequestCount());
+            assertEquals(4, _server.getFullResponseCount());
+        } finally {
+            PredictionsParser.setParseEngine(ParseEngine.SAX);
+            StationCache.setRefreshPolicy(true, RefreshPolicy.SHORT_TERM);
+            StationCache.setRefreshPolicy(false, RefreshPolicy.MEDIUM_TERM);
+        }
+    }
+
+    private StubFeedServer _server;
+    private final File _cacheDir = StubFeedServer.getCacheDir();
+}
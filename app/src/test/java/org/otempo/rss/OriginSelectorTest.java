@@ -0,0 +1,106 @@
+package org.otempo.rss;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.otempo.model.Station;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Elección de origen, sola y contra dos servidores locales (StubFeedServer) con latencia y errores simulados
+ */
+public class OriginSelectorTest {
+    private static final int STATIONS = 10;
+    private static final int FIRST_STATION = 92000;
+    private static final long COOL_DOWN = 60000;
+
+    @Before
+    public void setUp() throws IOException {
+        _slow = new StubFeedServer();
+        _fast = new StubFeedServer();
+        for (int i = 0; i < STATIONS; i++) {
+            StationCache.removeCached(FIRST_STATION + i, true, _cacheDir);
+            StationCache.removeCached(FIRST_STATION + i, false, _cacheDir);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StationCache.setOrigins(null);
+        _slow.stop();
+        _fast.stop();
+    }
+
+    @Test
+    public void triesUntriedOriginsInOrder() {
+        OriginSelector selector = new OriginSelector(Arrays.asList("a", "b"), COOL_DOWN);
+        Set<String> none = Collections.emptySet();
+        assertEquals("a", selector.choose(none));
+        selector.recordSuccess("a", 100);
+        // b no se ha probado, así que va antes que a aunque a sea rápido
+        assertEquals("b", selector.choose(none));
+        selector.recordSuccess("b", 10);
+        assertEquals("b", selector.choose(none));
+    }
+
+    @Test
+    public void ranksOriginsThatOnlyFailedAfterMeasuredOnes() {
+        OriginSelector selector = new OriginSelector(Arrays.asList("a", "b", "c"), COOL_DOWN);
+        Set<String> none = Collections.emptySet();
+        // Un solo fallo no aparta a "a", pero ya no cuenta como sin probar (ni como latencia 0)
+        selector.recordFailure("a");
+        assertTrue(selector.isHealthy("a"));
+        assertEquals("b", selector.choose(none));
+        selector.recordSuccess("b", 500);
+        assertEquals("c", selector.choose(none));
+        selector.recordSuccess("c", 1000);
+        assertEquals("b", selector.choose(none));
+        // Entre los que sólo han fallado, el que menos
+        selector.recordFailure("b");
+        selector.recordFailure("c");
+        assertEquals("b", selector.choose(new HashSet<>(Collections.singletonList("c"))));
+        assertEquals("a", new OriginSelector(Arrays.asList("a", "b"), COOL_DOWN).choose(none));
+    }
+
+    @Test
+    public void prefersTheFasterServer() throws IOException {
+        _slow.setLatency(200);
+        StationCache.setOrigins(Arrays.asList(_slow.getBaseUrl(), _fast.getBaseUrl()));
+        syncStations();
+        OriginSelector selector = StationCache.getOrigins();
+        assertTrue(selector.getLatency(_slow.getBaseUrl()) > selector.getLatency(_fast.getBaseUrl()));
+        // Cada uno se prueba al principio (los dos RSS de la primera estación pueden ir a la vez), y luego sólo el rápido
+        assertTrue("Slow server got " + _slow.getRequestCount() + " requests", _slow.getRequestCount() <= 2);
+        assertEquals(2 * STATIONS, _slow.getRequestCount() + _fast.getRequestCount());
+    }
+
+    @Test
+    public void stopsAskingAServerThatOnlyFailed() throws IOException {
+        _slow.setFailureStatus(503);
+        StationCache.setOrigins(Arrays.asList(_slow.getBaseUrl(), _fast.getBaseUrl()));
+        syncStations();
+        assertEquals(-1, StationCache.getOrigins().getLatency(_slow.getBaseUrl()), 0);
+        assertTrue("Failing server got " + _slow.getRequestCount() + " requests", _slow.getRequestCount() <= 2);
+        assertEquals(2 * STATIONS, _fast.getRequestCount());
+    }
+
+    private void syncStations() throws IOException {
+        for (int i = 0; i < STATIONS; i++) {
+            Station station = new Station("Stub " + i, FIRST_STATION + i, 0, 0);
+            assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+        }
+    }
+
+    private StubFeedServer _slow;
+    private StubFeedServer _fast;
+    private final File _cacheDir = StubFeedServer.getCacheDir();
+}
@@ -0,0 +1,120 @@
+package org.otempo.rss;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.otempo.model.Station;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compara la velocidad de los motores de parseo, con los RSS de prueba (sintéticos, ver feeds/README.txt):
+ *
+ * - En memoria: sólo el parseo, con el RSS ya entero en un array.
+ * - Por la red: PredictionsParser.parse completo contra StubFeedServer con latencia y ancho de banda
+ *   limitados, así que incluye la descarga, la copia a la SD y la espera del lector específico
+ *   (SCANNER), que no empieza hasta tener el RSS entero en memoria. SAX y PULL van parseando según llega.
+ *
+ * Es una medida en la JVM de escritorio, no en un dispositivo; sirve para comparar los motores entre
+ * sí, no para decidir cuál usar por defecto. No se ejecuta con el resto de pruebas; para lanzarla:
+ *
+ *   OTEMPO_BENCHMARK=1 ./gradlew testDebugUnitTest --tests org.otempo.rss.ParseEngineBenchmark -i
+ */
+public class ParseEngineBenchmark {
+    private static final int IN_MEMORY_ROUNDS = 2000;
+    private static final int NETWORK_ROUNDS = 5;
+    private static final long LATENCY = 50; ///< Latencia de cada petición (en ms)
+    private static final int BANDWIDTH = 64 * 1024; ///< Ancho de banda (en bytes por segundo), como un 3G flojo
+    private static final ParseEngine[] ENGINES = {ParseEngine.SAX, ParseEngine.SCANNER, ParseEngineTest.PULL};
+    private static final String[] ENGINE_NAMES = {"SAX", "SCANNER", "PULL"};
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(System.getenv("OTEMPO_BENCHMARK") != null);
+        _engine = PredictionsParser.getParseEngine();
+    }
+
+    @After
+    public void tearDown() {
+        if (_engine != null) {
+            PredictionsParser.setParseEngine(_engine);
+        }
+    }
+
+    @Test
+    public void parseInMemory() throws IOException, SAXException {
+        int feeds = ParseEngineTest.FEED_STATIONS.length * 2;
+        byte[][] data = new byte[feeds][];
+        long bytes = 0;
+        for (int i = 0; i < feeds; i++) {
+            data[i] = ParseEngineTest.readFeed(ParseEngineTest.FEED_STATIONS[i / 2], i % 2 == 0);
+            bytes += data[i].length;
+        }
+        ShortTermSAXHandler shortTerm = new ShortTermSAXHandler();
+        MediumTermSAXHandler mediumTerm = new MediumTermSAXHandler();
+        // La primera vuelta calienta la JIT; se mide la segunda
+        for (int round = 0; round < 2; round++) {
+            for (int e = 0; e < ENGINES.length; e++) {
+                long start = System.nanoTime();
+                for (int r = 0; r < IN_MEMORY_ROUNDS; r++) {
+                    for (int i = 0; i < feeds; i++) {
+                        ENGINES[e].parse(new ByteArrayInputStream(data[i]), i % 2 == 0 ? shortTerm : mediumTerm);
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (round == 1) {
+                    System.out.println(String.format(Locale.US, "In memory  %-8s %7.1f MB/s %8.1f us/feed", ENGINE_NAMES[e],
+                            bytes * IN_MEMORY_ROUNDS / seconds / 1e6, seconds * 1e6 / (IN_MEMORY_ROUNDS * feeds)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void parseThroughTheNetwork() throws IOException {
+        StubFeedServer server = new StubFeedServer();
+        File cacheDir = StubFeedServer.getCacheDir();
+        try {
+            server.setLatency(LATENCY);
+            server.setBandwidth(BANDWIDTH);
+            for (int stationId : ParseEngineTest.FEED_STATIONS) {
+                server.setFeed(stationId, true, ParseEngineTest.readFeed(stationId, true));
+                server.setFeed(stationId, false, ParseEngineTest.readFeed(stationId, false));
+            }
+            StationCache.setBaseUrl(server.getBaseUrl());
+            for (int round = 0; round < 2; round++) {
+                for (int e = 0; e < ENGINES.length; e++) {
+                    PredictionsParser.setParseEngine(ENGINES[e]);
+                    long start = System.nanoTime();
+                    for (int r = 0; r < NETWORK_ROUNDS; r++) {
+                        for (int stationId : ParseEngineTest.FEED_STATIONS) {
+                            // Sin copia, para que siempre se descargue
+                            StationCache.removeCached(stationId, true, cacheDir);
+                            StationCache.removeCached(stationId, false, cacheDir);
+                            Station station = new Station("Benchmark", stationId, 0, 0);
+                            assertTrue(PredictionsParser.parse(station, cacheDir, false));
+                        }
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (round == 1) {
+                        System.out.println(String.format(Locale.US, "Network    %-8s %8.1f ms/station (%d ms latency, %d KB/s)",
+                                ENGINE_NAMES[e], seconds * 1e3 / (NETWORK_ROUNDS * ParseEngineTest.FEED_STATIONS.length),
+                                LATENCY, BANDWIDTH / 1024));
+                    }
+                }
+            }
+        } finally {
+            StationCache.setBaseUrl(null);
+            server.stop();
+        }
+    }
+
+    private ParseEngine _engine;
+}
@@ -0,0 +1,179 @@
+package org.otempo.rss;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.otempo.model.StationMediumTermPrediction;
+import org.otempo.model.StationPrediction;
+import org.otempo.model.StationShortTermPrediction;
+import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Todos los motores deben dar las mismas predicciones que SAX
+ */
+public class ParseEngineTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    /// Estaciones de las que hay RSS de prueba en feeds/ (ver el README de ese directorio)
+    static final int[] FEED_STATIONS = {15001, 15002, 15003, 15004, 15005};
+    /// PULL con el mismo parser que hay detrás de android.util.Xml (kxml2), que fuera de Android no está
+    static final ParseEngine PULL = new PullParseEngine() {
+        @Override
+        XmlPullParser newParser() {
+            return new KXmlParser();
+        }
+    };
+    private static final ParseEngine[] ENGINES = {ParseEngine.SCANNER, PULL};
+    private static final String[] ENGINE_NAMES = {"SCANNER", "PULL"};
+
+    @Test
+    public void enginesMatchSaxOnSampleFeeds() throws IOException {
+        for (int stationId : FEED_STATIONS) {
+            for (boolean shortTerm : new boolean[]{true, false}) {
+                byte[] feed = readFeed(stationId, shortTerm);
+                String expected = parse(ParseEngine.SAX, feed, shortTerm);
+                assertTrue(expected, expected.startsWith("OK"));
+                for (int e = 0; e < ENGINES.length; e++) {
+                    assertEquals(ENGINE_NAMES[e] + " " + stationId + (shortTerm ? " short" : " medium"), expected,
+                            parse(ENGINES[e], feed, shortTerm));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void enginesMatchSaxOnVariations() throws IOException {
+        String feed = new String(readFeed(15001, true), UTF8);
+        String tMax = "<Concellos:tMax>14</Concellos:tMax>";
+        assertTrue(feed.contains(tMax));
+        String[] variations = {
+                feed.replace("\n", "\r\n"),
+                feed.replace("<item>", "<!-- comentario --><item>"),
+                feed.replace("<item>", "<?proceso datos?><item>"),
+                feed.replace(tMax, "<Concellos:tMax><![CDATA[14]]></Concellos:tMax>"),
+                feed.replace(tMax, "<Concellos:tMax>&#49;4</Concellos:tMax>"),
+                feed.replace(tMax, "<Concellos:tMax>&#x31;4</Concellos:tMax>"),
+                feed.replace(tMax, "<Concellos:tMax> 14 </Concellos:tMax>"),
+                feed.replace(tMax, "<Concellos:tMax/>"),
+                feed.replace(tMax, "<Concellos:tMax>1&bogus;4</Concellos:tMax>"),
+                feed.replace("<title>", "<title>&lt;&gt;&amp;&quot;&apos;"),
+                feed.replace("formato=\"dd/MM/yyyy\"", "formato='dd&#x2F;MM/yyyy'"),
+                feed.replace("formato=\"dd/MM/yyyy\"", "formato = \"dd/MM/yyyy\" otro=\"x\""),
+                feed.replace("<Concellos:dataPredicion formato=\"dd/MM/yyyy\">", "<Concellos:dataPredicion>"),
+                feed.replace("</Concellos:tMin>", "</Concellos:tMinx>"),
+                feed.replace("</item>", ""),
+                feed.substring(0, feed.length() / 2),
+                feed + "<sobra/>",
+                feed + "texto",
+                "﻿" + feed,
+                feed.replace("<?xml version=\"1.0\" encoding=\"UTF-8\"?>", ""),
+                feed.replace("<?xml version=\"1.0\" encoding=\"UTF-8\"?>", "<?xml version=\"1.0\"?>\n<!DOCTYPE rss>"),
+                "",
+                "<rss/>",
+        };
+        for (int e = 0; e < ENGINES.length; e++) {
+            for (int i = 0; i < variations.length; i++) {
+                byte[] bytes = variations[i].getBytes(UTF8);
+                assertEquals(ENGINE_NAMES[e] + " variation " + i, parse(ParseEngine.SAX, bytes, true), parse(ENGINES[e], bytes, true));
+            }
+            // Otra codificación, con caracteres que no son ASCII en el nombre
+            byte[] latin = feed.replace("encoding=\"UTF-8\"", "encoding=\"ISO-8859-1\"")
+                    .replace("<title>", "<title>Predición ").getBytes(ISO_8859_1);
+            assertEquals(ENGINE_NAMES[e], parse(ParseEngine.SAX, latin, true), parse(ENGINES[e], latin, true));
+        }
+    }
+
+    @Test
+    public void enginesReadFeedsArrivingInPieces() throws IOException {
+        byte[] feed = readFeed(15002, false);
+        String expected = parse(ParseEngine.SAX, feed, false);
+        for (int e = 0; e < ENGINES.length; e++) {
+            MediumTermSAXHandler handler = new MediumTermSAXHandler();
+            try {
+                // Como llega por la red: unos pocos bytes en cada read
+                ENGINES[e].parse(new ByteArrayInputStream(feed) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        return super.read(b, off, Math.min(len, 7));
+                    }
+                }, handler);
+            } catch (SAXException ex) {
+                throw new AssertionError(ex);
+            }
+            assertEquals(ENGINE_NAMES[e], expected, "OK\n" + describe(handler.getPredictions()));
+        }
+    }
+
+    /**
+     * @return RSS de prueba de una estación
+     */
+    static byte[] readFeed(int stationId, boolean shortTerm) throws IOException {
+        InputStream in = ParseEngineTest.class.getResourceAsStream("feeds/" + stationId + (shortTerm ? "_short" : "_medium") + ".rss");
+        assertNotNull(in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Las predicciones como texto, o la excepción si no se pudo parsear (los motores no
+     * tienen por qué dar el mismo mensaje, pero sí fallar en los mismos casos)
+     */
+    private static String parse(ParseEngine engine, byte[] feed, boolean shortTerm) throws IOException {
+        PredictionSAXHandler handler = shortTerm ? new ShortTermSAXHandler() : new MediumTermSAXHandler();
+        try {
+            engine.parse(new ByteArrayInputStream(feed), handler);
+        } catch (SAXException e) {
+            return "SAXException";
+        }
+        return "OK\n" + describe(handler.getPredictions());
+    }
+
+    private static String describe(List<StationPrediction> predictions) {
+        StringBuilder out = new StringBuilder();
+        for (StationPrediction prediction : predictions) {
+            out.append(prediction.getDateMillis()).append(' ')
+                    .append(prediction.getCreationDateMillis()).append(' ')
+                    .append(prediction.getMaxTemp()).append(' ')
+                    .append(prediction.getMinTemp());
+            if (prediction instanceof StationShortTermPrediction) {
+                StationShortTermPrediction shortTerm = (StationShortTermPrediction) prediction;
+                out.append(' ').append(shortTerm.getSkyStateMorning())
+                        .append(' ').append(shortTerm.getSkyStateAfternoon())
+                        .append(' ').append(shortTerm.getSkyStateNight())
+                        .append(' ').append(shortTerm.getWindStateMorning())
+                        .append(' ').append(shortTerm.getWindStateAfternoon())
+                        .append(' ').append(shortTerm.getWindStateNight())
+                        .append(' ').append(shortTerm.getRainProbabilityMorning())
+                        .append(' ').append(shortTerm.getRainProbabilityAfternoon())
+                        .append(' ').append(shortTerm.getRainProbabilityNight());
+            } else {
+                StationMediumTermPrediction mediumTerm = (StationMediumTermPrediction) prediction;
+                out.append(' ').append(mediumTerm.getSkyState())
+                        .append(' ').append(mediumTerm.getWindState())
+                        .append(' ').append(mediumTerm.getRainProbability());
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+}
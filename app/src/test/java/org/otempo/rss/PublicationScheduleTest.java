@@ -0,0 +1,59 @@
+package org.otempo.rss;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+
+public class PublicationScheduleTest {
+    private static final long HOUR = 1000 * 3600;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        _schedule = new PublicationSchedule(new File(_folder.getRoot(), "publications"));
+    }
+
+    @Test
+    public void learnsPublicationTimes() {
+        _schedule.record(true, at(1, 11, 50));
+        _schedule.record(true, at(3, 12, 10));
+        // Vista una sola vez, no es una hora de publicación
+        _schedule.record(true, at(4, 18, 0));
+        _schedule.record(true, at(5, 12, 5));
+        // La más tardía del grupo, con el margen de 15 minutos
+        assertEquals(at(5, 12, 25), _schedule.getNextSync(true, at(5, 6, 0), HOUR));
+        assertEquals(at(6, 12, 25), _schedule.getNextSync(true, at(5, 13, 0), HOUR));
+    }
+
+    @Test
+    public void groupsPublicationsAroundMidnight() {
+        _schedule.record(false, at(1, 23, 50));
+        _schedule.record(false, at(3, 0, 10));
+        _schedule.record(false, at(4, 23, 55));
+        assertEquals(at(6, 0, 25), _schedule.getNextSync(false, at(5, 12, 0), HOUR));
+        // Junto a otra hora de publicación, que no se mezcla con la de medianoche
+        _schedule.record(false, at(1, 12, 0));
+        _schedule.record(false, at(2, 12, 30));
+        assertEquals(at(5, 12, 45), _schedule.getNextSync(false, at(5, 7, 0), HOUR));
+    }
+
+    /**
+     * @return Un instante (en ms) del día dado de enero de 2020, en la zona horaria local
+     */
+    private static long at(int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2020, Calendar.JANUARY, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private PublicationSchedule _schedule;
+}
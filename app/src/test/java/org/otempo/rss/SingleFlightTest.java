@@ -0,0 +1,134 @@
+package org.otempo.rss;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+    @Test
+    public void sharesTheResultWithConcurrentCallers() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final SingleFlight.Call<Integer> call = new SingleFlight.Call<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return 42;
+            }
+        };
+        final AtomicReference<Object> leaderResult = new AtomicReference<>();
+        Thread leader = startCaller(flight, call, leaderResult);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        final AtomicReference<Object> followerResult = new AtomicReference<>();
+        Thread follower = startCaller(flight, call, followerResult);
+        waitUntilWaiting(follower);
+        release.countDown();
+        leader.join();
+        follower.join();
+        assertEquals(42, leaderResult.get());
+        assertEquals(42, followerResult.get());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void followersRecomputeWhenTheLeaderIsInterrupted() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final SingleFlight.Call<Integer> call = new SingleFlight.Call<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                if (calls.incrementAndGet() == 1) {
+                    started.countDown();
+                    // El primero se queda esperando hasta que lo interrumpan, como una descarga cancelada
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Cancelled");
+                    }
+                }
+                return 7;
+            }
+        };
+        AtomicReference<Object> leaderResult = new AtomicReference<>();
+        Thread leader = startCaller(flight, call, leaderResult);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        AtomicReference<Object> followerResult = new AtomicReference<>();
+        Thread follower = startCaller(flight, call, followerResult);
+        waitUntilWaiting(follower);
+        leader.interrupt();
+        leader.join();
+        follower.join();
+        assertTrue(String.valueOf(leaderResult.get()), leaderResult.get() instanceof InterruptedIOException);
+        // Nadie interrumpió al otro: calcula de nuevo en lugar de recibir la interrupción ajena
+        assertEquals(7, followerResult.get());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void sharesOrdinaryFailures() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        try {
+            flight.run("key", new SingleFlight.Call<Integer>() {
+                @Override
+                public Integer call() throws IOException {
+                    throw new IOException("Failed");
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("Failed", e.getMessage());
+            assertNull(e.getCause());
+        }
+    }
+
+    private static Thread startCaller(final SingleFlight<String, Integer> flight, final SingleFlight.Call<Integer> call,
+                                      final AtomicReference<Object> result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(flight.run("key", call));
+                } catch (IOException e) {
+                    result.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Espera a que el hilo esté bloqueado esperando el resultado de otro
+     */
+    private static void waitUntilWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.otempo.rss;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.otempo.model.Station;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cuándo se pregunta al servidor y cuándo se sirve la copia, contra un servidor local (StubFeedServer)
+ */
+public class StationCacheTest {
+    private static final int FIRST_STATION = 93000;
+    private static final long HOUR = 1000 * 3600;
+
+    @Before
+    public void setUp() throws IOException {
+        _server = new StubFeedServer();
+        // Copias que caducan nada más guardarse, para que sólo decida la política
+        _server.setMaxAge(0);
+        StationCache.setBaseUrl(_server.getBaseUrl());
+        for (int i = 0; i < 3; i++) {
+            StationCache.removeCached(FIRST_STATION + i, true, _cacheDir);
+            StationCache.removeCached(FIRST_STATION + i, false, _cacheDir);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StationCache.setNetworkType(DataUsage.NETWORK_OTHER);
+        StationCache.setTimeouts(10000, 15000);
+        StationCache.setRefreshPolicy(true, RefreshPolicy.SHORT_TERM);
+        StationCache.setRefreshPolicy(false, RefreshPolicy.MEDIUM_TERM);
+        StationCache.setBaseUrl(null);
+        _server.stop();
+    }
+
+    @Test
+    public void defersToUnmeteredNetworksOnlyUpToTheMaxAge() throws Exception {
+        Station station = new Station("Stub", FIRST_STATION, 0, 0);
+        StationCache.setRefreshPolicy(true, new RefreshPolicy(0, HOUR, true, 1));
+        StationCache.setNetworkType(DataUsage.NETWORK_WIFI);
+        PredictionsParser.parse(station, _cacheDir, false);
+        // El de medio plazo queda fresco por su edad mínima (3 horas), así que en adelante sólo se pide el de corto
+        assertEquals(2, _server.getRequestCount());
+        // Con datos móviles se sirve la copia, aunque haya caducado
+        StationCache.setNetworkType(DataUsage.NETWORK_MOBILE);
+        PredictionsParser.parse(station, _cacheDir, false);
+        assertEquals(2, _server.getRequestCount());
+        // Pero no si es más vieja que la edad máxima
+        StationCache.setRefreshPolicy(true, new RefreshPolicy(0, 50, true, 1));
+        Thread.sleep(100);
+        PredictionsParser.parse(station, _cacheDir, false);
+        assertEquals(3, _server.getRequestCount());
+    }
+
+    @Test
+    public void usesTheStoredCopyWhenADownloadTimesOut() throws IOException {
+        Station station = new Station("Stub", FIRST_STATION + 1, 0, 0);
+        StationCache.setStorageAgeBounds(0, 0);
+        assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+        // Un RSS nuevo que se queda a medias: salta el tiempo de espera de lectura en mitad del parseo
+        _server.setVersion(2);
+        _server.setStallAfter(200);
+        StationCache.setTimeouts(10000, 300);
+        // Sin nada en pantalla, como al abrir la aplicación: hace falta la copia, no basta con "sin cambios"
+        Station reopened = new Station("Stub", FIRST_STATION + 1, 0, 0);
+        assertTrue(PredictionsParser.parse(reopened, _cacheDir, false));
+        assertEquals(4, _server.getRequestCount());
+        assertFalse(reopened.getPredictions().isEmpty());
+    }
+
+    @Test
+    public void countsRevalidationsOncePerLoad() throws Exception {
+        Station station = new Station("Stub", FIRST_STATION + 2, 0, 0);
+        StationCache.setStorageAgeBounds(0, 0);
+        CacheStats stats = StationCache.getStats();
+        long hits = stats.getHits() + stats.getStaleHits();
+        long revalidations = stats.getRevalidations();
+        long misses = stats.getMisses();
+        assertTrue(PredictionsParser.parse(station, _cacheDir, false));
+        assertEquals(misses + 2, stats.getMisses());
+        // Sin cambios en el servidor: 304 en los dos RSS, que no son fallos aunque se pregunte
+        PredictionsParser.parse(station, _cacheDir, false);
+        assertEquals(revalidations + 2, stats.getRevalidations());
+        // Abrir la estación lee la SD y revalida: cuenta una vez por RSS, no dos
+        Station reopened = new Station("Stub", FIRST_STATION + 2, 0, 0);
+        assertTrue(PredictionsParser.loadThenRevalidate(reopened, _cacheDir, new PredictionsParser.RevalidationListener() {
+            @Override
+            public void onChanged(Station station) {
+            }
+
+            @Override
+            public void onError(Station station, IOException e) {
+            }
+        }));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stats.getRevalidations() < revalidations + 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(revalidations + 4, stats.getRevalidations());
+        assertEquals(hits, stats.getHits() + stats.getStaleHits());
+        assertEquals(misses + 2, stats.getMisses());
+        assertEquals(6, _server.getRequestCount());
+    }
+
+    private StubFeedServer _server;
+    private final File _cacheDir = StubFeedServer.getCacheDir();
+}
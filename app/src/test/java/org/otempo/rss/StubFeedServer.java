@@ -0,0 +1,250 @@
+package org.otempo.rss;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servidor local que hace de meteogalicia en las pruebas, dentro del mismo proceso: sirve un RSS
+ * generado para cualquier estación, con ETag (y 304 si no ha cambiado), y permite simular latencia
+ * y errores. Cuenta las peticiones y las conexiones distintas que recibe, para comprobar que se
+ * reutilizan.
+ */
+class StubFeedServer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SEGMENT = 1460; ///< Bytes que se envían de cada vez con un ancho de banda limitado
+
+    StubFeedServer() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        _server.setExecutor(_threads);
+        _server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        _server.start();
+    }
+
+    /**
+     * @return Dirección base (terminada en /), para StationCache.setOrigins o setBaseUrl
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + _server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param latency Espera antes de cada respuesta (en ms)
+     */
+    void setLatency(long latency) {
+        _latency = latency;
+    }
+
+    /**
+     * @param status Código HTTP con el que responder a todo, o 0 para responder normalmente
+     */
+    void setFailureStatus(int status) {
+        _failureStatus = status;
+    }
+
+    /**
+     * Cambia el contenido de todos los RSS (y por tanto su ETag)
+     */
+    void setVersion(int version) {
+        _version = version;
+    }
+
+    /**
+     * @param bytesPerSecond Velocidad a la que enviar los RSS, o 0 para enviarlos de una vez
+     */
+    void setBandwidth(int bytesPerSecond) {
+        _bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * @param bytes Bytes del RSS que se envían antes de quedarse callado (hasta que se pare el
+     *              servidor), o -1 para enviarlo entero
+     */
+    void setStallAfter(int bytes) {
+        _stallAfter = bytes;
+    }
+
+    /**
+     * Sirve siempre este RSS para una estación, en lugar de uno generado
+     */
+    void setFeed(int stationId, boolean shortTerm, byte[] body) {
+        _feeds.put(stationId + (shortTerm ? "s" : "m"), body);
+    }
+
+    /**
+     * @param maxAge Frescura que se anuncia en Cache-Control (en segundos)
+     */
+    void setMaxAge(int maxAge) {
+        _maxAge = maxAge;
+    }
+
+    /**
+     * Cambia los ETag sin cambiar el contenido, como un servidor que los regenera (al reiniciarse, por ej.)
+     */
+    void renewEtags() {
+        _etagGeneration++;
+    }
+
+    int getRequestCount() {
+        return _requests.get();
+    }
+
+    /**
+     * @return Respuestas enviadas con el RSS entero (200)
+     */
+    int getFullResponseCount() {
+        return _fullResponses.get();
+    }
+
+    /**
+     * @return Conexiones distintas por las que han llegado las peticiones
+     */
+    int getConnectionCount() {
+        return _connections.size();
+    }
+
+    void stop() {
+        _server.stop(0);
+        _threads.shutdownNow();
+    }
+
+    /**
+     * Directorio de caché común a todas las pruebas: StationCache abre su fichero de copias una sola
+     * vez por proceso, así que cada prueba usa sus propias estaciones en lugar de su propio directorio.
+     */
+    static File getCacheDir() {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "otempo-test-cache");
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * @return Un RSS válido de una estación, con predicciones a partir de hoy
+     */
+    static byte[] makeFeed(int stationId, boolean shortTerm, int version) {
+        SimpleDateFormat created = new SimpleDateFormat("yyyy-MM-dd'T'HH:00:00'Z'", Locale.US);
+        created.setTimeZone(TimeZone.getTimeZone("UTC"));
+        SimpleDateFormat day = new SimpleDateFormat("dd/MM/yyyy", Locale.US);
+        Calendar date = Calendar.getInstance();
+        StringBuilder feed = new StringBuilder()
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<rss version=\"2.0\" xmlns:Concellos=\"http://www.meteogalicia.es/Concellos\">\n<channel>\n")
+                .append("<title>MeteoGalicia - Predición</title>\n");
+        for (int i = 0; i < (shortTerm ? 3 : 4); i++) {
+            feed.append("<item>\n<title>Estación ").append(stationId).append("</title>\n")
+                    .append("<Concellos:idConcello>").append(stationId).append("</Concellos:idConcello>\n")
+                    .append("<Concellos:dataCreacion>").append(created.format(date.getTime())).append("</Concellos:dataCreacion>\n")
+                    .append("<Concellos:dataPredicion formato=\"dd/MM/yyyy\">").append(day.format(date.getTime()))
+                    .append("</Concellos:dataPredicion>\n");
+            if (shortTerm) {
+                feed.append("<Concellos:ceoM>101</Concellos:ceoM><Concellos:ceoT>103</Concellos:ceoT><Concellos:ceoN>105</Concellos:ceoN>\n")
+                        .append("<Concellos:ventoM>301</Concellos:ventoM><Concellos:ventoT>305</Concellos:ventoT><Concellos:ventoN>309</Concellos:ventoN>\n")
+                        .append("<Concellos:pChoivaM>").append(version % 100).append("</Concellos:pChoivaM>")
+                        .append("<Concellos:pChoivaT>20</Concellos:pChoivaT><Concellos:pChoivaN>40</Concellos:pChoivaN>\n");
+            } else {
+                feed.append("<Concellos:ceo>111</Concellos:ceo><Concellos:vento>303</Concellos:vento>")
+                        .append("<Concellos:pChoiva>").append(version % 100).append("</Concellos:pChoiva>\n");
+            }
+            feed.append("<Concellos:tMax>").append(15 + i).append("</Concellos:tMax><Concellos:tMin>").append(5 + i)
+                    .append("</Concellos:tMin>\n</item>\n");
+            date.add(Calendar.DATE, 1);
+        }
+        return feed.append("</channel>\n</rss>\n").toString().getBytes(UTF8);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        _requests.incrementAndGet();
+        _connections.add(exchange.getRemoteAddress().getPort());
+        try {
+            InputStream request = exchange.getRequestBody();
+            while (request.read() != -1) {
+                // Nada que leer en un GET, pero así la conexión queda lista para la siguiente petición
+            }
+            if (_latency > 0) {
+                Thread.sleep(_latency);
+            }
+            if (_failureStatus != 0) {
+                exchange.sendResponseHeaders(_failureStatus, -1);
+                return;
+            }
+            String query = exchange.getRequestURI().getQuery();
+            int stationId = Integer.parseInt(query.replaceAll(".*idZona=(\\d+).*", "$1"));
+            boolean shortTerm = exchange.getRequestURI().getPath().endsWith("rssLocalidades.action");
+            int version = _version;
+            String etag = "\"" + stationId + (shortTerm ? "s" : "m") + version + "-" + _etagGeneration + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=" + _maxAge);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            byte[] body = _feeds.get(stationId + (shortTerm ? "s" : "m"));
+            if (body == null) {
+                body = makeFeed(stationId, shortTerm, version);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/rss+xml; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            _fullResponses.incrementAndGet();
+            OutputStream response = exchange.getResponseBody();
+            int bandwidth = _bandwidth;
+            int stallAfter = _stallAfter;
+            if (stallAfter >= 0 && stallAfter < body.length) {
+                response.write(body, 0, stallAfter);
+                response.flush();
+                Thread.sleep(Long.MAX_VALUE);
+            } else if (bandwidth > 0) {
+                // Por segmentos, como llegaría por una red lenta
+                for (int offset = 0; offset < body.length; offset += SEGMENT) {
+                    int length = Math.min(SEGMENT, body.length - offset);
+                    Thread.sleep(1000L * length / bandwidth);
+                    response.write(body, offset, length);
+                    response.flush();
+                }
+            } else {
+                response.write(body);
+            }
+            response.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private final HttpServer _server; ///< Servidor HTTP del JDK
+    private final ExecutorService _threads = Executors.newCachedThreadPool(); ///< Hilos que atienden las peticiones
+    private final AtomicInteger _requests = new AtomicInteger(); ///< Peticiones recibidas
+    private final AtomicInteger _fullResponses = new AtomicInteger(); ///< Respuestas con el RSS entero
+    private final Set<Integer> _connections = ConcurrentHashMap.newKeySet(); ///< Puertos de origen de las peticiones
+    private volatile long _latency = 0; ///< Espera antes de cada respuesta (en ms)
+    private volatile int _failureStatus = 0; ///< Código con el que responder a todo, o 0
+    private volatile int _version = 1; ///< Versión del contenido de los RSS
+    private final Map<String, byte[]> _feeds = new ConcurrentHashMap<>(); ///< RSS fijos, por estación y tipo
+    private volatile int _stallAfter = -1; ///< Bytes enviados antes de quedarse callado, o -1
+    private volatile int _bandwidth = 0; ///< Velocidad de envío (en bytes por segundo), o 0 sin límite
+    private volatile int _maxAge = 60; ///< Frescura que se anuncia en Cache-Control (en segundos)
+    private volatile int _etagGeneration = 0; ///< Se suma a los ETag, para cambiarlos sin cambiar el contenido
+}
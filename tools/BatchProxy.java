@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2010-2011 Ruben Lopez
+ *
+ * This file is part of OTempo - Galician Weather
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Proxy de referencia para el modo por lotes (org.otempo.rss.FeedBatch): recibe en una sola
+ * petición la lista de RSS que quiere la aplicación, los pide a meteogalicia en paralelo (guardando
+ * cada uno unos minutos, para atender a muchos clientes con pocas peticiones), y los devuelve todos
+ * juntos. Los que coinciden con el hash que ya tiene el cliente se responden con 304, sin el RSS.
+ *
+ * Uso (desde la raíz del proyecto, con un JDK 11 o posterior):
+ *
+ *   java tools/BatchProxy.java [puerto] [dirección_base_de_meteogalicia]
+ *
+ * y en la aplicación StationCache.setBatchUrl("http://servidor:puerto/batch").
+ */
+public class BatchProxy {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int DEFAULT_PORT = 8080;
+    private static final String DEFAULT_ORIGIN = "http://servizos.meteogalicia.es/rss/predicion/";
+    private static final long MAX_AGE = 5 * 60 * 1000; ///< Tiempo que se guarda cada RSS sin volver a pedirlo (en ms)
+    private static final int MAX_FEEDS = 100; ///< RSS como mucho por petición
+    private static final int UPSTREAM_THREADS = 8; ///< Peticiones simultáneas a meteogalicia
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String origin = args.length > 1 ? args[1] : DEFAULT_ORIGIN;
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/batch", new BatchHandler(origin));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        System.out.println("Batch proxy for " + origin + " listening on http://localhost:" + port + "/batch");
+    }
+
+    /**
+     * Un RSS tal como lo respondió meteogalicia
+     */
+    private static class Feed {
+        Feed(int status, byte[] body, String etag) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            this.hash = (int) crc.getValue();
+            this.fetched = System.currentTimeMillis();
+        }
+
+        final int status; ///< Estado HTTP de la respuesta (o 502 si no se pudo pedir)
+        final byte[] body; ///< El RSS
+        final String etag; ///< Cabecera ETag, o null
+        final int hash; ///< CRC32 del RSS, como lo calcula la aplicación
+        final long fetched; ///< Cuándo se pidió
+    }
+
+    private static class BatchHandler implements HttpHandler {
+        BatchHandler(String origin) {
+            _origin = origin;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String feeds = getParameter(exchange.getRequestURI().getRawQuery(), "feeds");
+                if (feeds == null || feeds.isEmpty()) {
+                    sendError(exchange, 400, "Missing feeds parameter");
+                    return;
+                }
+                String[] items = feeds.split(",");
+                if (items.length > MAX_FEEDS) {
+                    sendError(exchange, 400, "Too many feeds");
+                    return;
+                }
+                List<Future<Feed>> pending = new ArrayList<>();
+                for (final String item : items) {
+                    final String key = item.split(":")[0];
+                    if (!key.matches("\\d+[sm]")) {
+                        sendError(exchange, 400, "Bad feed " + item);
+                        return;
+                    }
+                    pending.add(_upstream.submit(new Callable<Feed>() {
+                        @Override
+                        public Feed call() {
+                            return getFeed(key);
+                        }
+                    }));
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(("OTBATCH 1\n").getBytes(ASCII));
+                for (int i = 0; i < items.length; i++) {
+                    String[] parts = items[i].split(":");
+                    String key = parts[0];
+                    Feed feed = pending.get(i).get();
+                    String line = key.substring(0, key.length() - 1) + " " + key.charAt(key.length() - 1) + " ";
+                    if (feed.status != 200) {
+                        line += feed.status + " 0";
+                        out.write((line + "\n").getBytes(ASCII));
+                    } else if (parts.length > 1 && parts[1].equals(String.format(Locale.US, "%08x", feed.hash))) {
+                        line += "304 0";
+                        out.write((line + "\n").getBytes(ASCII));
+                    } else {
+                        line += "200 " + feed.body.length + (feed.etag != null ? " " + feed.etag : "");
+                        out.write((line + "\n").getBytes(ASCII));
+                        out.write(feed.body);
+                    }
+                }
+                byte[] response = out.toByteArray();
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+                    gzip.write(response);
+                    gzip.close();
+                    response = gzipped.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/x-otempo-batch");
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=" + MAX_AGE / 1000);
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(response);
+                body.close();
+                System.out.println(items.length + " feeds, " + response.length + " bytes");
+            } catch (InterruptedException | ExecutionException e) {
+                sendError(exchange, 500, e.toString());
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * @param key Estación y tipo, por ejemplo "10s"
+         * @return El RSS, de los guardados si no ha pasado MAX_AGE
+         */
+        private Feed getFeed(String key) {
+            Feed cached = _cache.get(key);
+            if (cached != null && System.currentTimeMillis() - cached.fetched < MAX_AGE) {
+                return cached;
+            }
+            String stationId = key.substring(0, key.length() - 1);
+            String action = key.endsWith("s") ? "rssLocalidades.action" : "rssConcellosMPrazo.action";
+            Feed feed;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(_origin + action + "?idZona=" + stationId + "&dia=-1").openConnection();
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(15000);
+                int status = connection.getResponseCode();
+                if (status != 200) {
+                    connection.disconnect();
+                    return new Feed(status, new byte[0], null);
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    feed = new Feed(status, in.readAllBytes(), connection.getHeaderField("ETag"));
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to fetch " + key + ": " + e);
+                // Si hay una copia anterior, mejor eso que nada
+                return cached != null ? cached : new Feed(502, new byte[0], null);
+            }
+            _cache.put(key, feed);
+            return feed;
+        }
+
+        private static String getParameter(String query, String name) {
+            if (query == null) {
+                return null;
+            }
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    return URLDecoder.decode(pair.substring(equals + 1), Charset.forName("UTF-8"));
+                }
+            }
+            return null;
+        }
+
+        private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+            byte[] body = (message + "\n").getBytes(ASCII);
+            exchange.sendResponseHeaders(status, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        private final String _origin; ///< Dirección base de meteogalicia
+        private final Map<String, Feed> _cache = new ConcurrentHashMap<>(); ///< RSS ya pedidos, por estación y tipo
+        private final ExecutorService _upstream = Executors.newFixedThreadPool(UPSTREAM_THREADS); ///< Peticiones a meteogalicia
+    }
+}
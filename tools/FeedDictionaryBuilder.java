@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2010-2011 Ruben Lopez
+ *
+ * This file is part of OTempo - Galician Weather
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Genera el diccionario de compresión de las copias de los RSS (FeedDictionary.java) a partir de
+ * una colección de RSS reales de meteogalicia, e informa de cuánto se comprimen con él respecto a
+ * gzip y de a qué velocidad se descomprimen.
+ *
+ * Uso (desde la raíz del proyecto, con un JDK 11 o posterior):
+ *
+ *   java tools/FeedDictionaryBuilder.java directorio_con_rss [tamaño_máximo]
+ *
+ * El directorio debe contener RSS descargados tal cual (de los dos tipos, y de cuantas más
+ * estaciones y días mejor). El fichero generado sustituye a
+ * app/src/main/java/org/otempo/rss/FeedDictionary.java. Cambiar el diccionario hace que las copias
+ * guardadas con el anterior no se puedan leer: se descartan y se vuelven a descargar.
+ * El diccionario que hay ahora se generó con RSS de ejemplo, así que StationCache no lo usa por
+ * defecto (_useDictionary); una vez generado a partir de RSS reales, se puede activar.
+ */
+public class FeedDictionaryBuilder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String OUTPUT = "app/src/main/java/org/otempo/rss/FeedDictionary.java";
+    private static final int DEFAULT_MAX_SIZE = 16 * 1024; ///< Deflate sólo mira 32KB hacia atrás, y el RSS también ocupa ventana
+    private static final int MIN_DOCUMENTS = 2; ///< Un fragmento que sólo aparece en un RSS no ayuda a los demás
+    private static final int MIN_SHARE = 10; ///< Tampoco uno que sólo aparece en pocos (los datos de una estación): al menos en el 1/MIN_SHARE de los RSS
+    private static final int DECODE_ROUNDS = 200; ///< Vueltas para medir la velocidad de descompresión
+
+    public static void main(String[] args) throws IOException, DataFormatException {
+        if (args.length < 1) {
+            System.err.println("Usage: java tools/FeedDictionaryBuilder.java <feed dir> [max dictionary bytes]");
+            System.exit(1);
+        }
+        int maxSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_SIZE;
+        List<byte[]> feeds = readCorpus(new File(args[0]));
+        if (feeds.isEmpty()) {
+            System.err.println("No feeds found in " + args[0]);
+            System.exit(1);
+        }
+        byte[] dictionary = buildDictionary(feeds, maxSize);
+        writeSource(dictionary, feeds.size());
+        report(feeds, dictionary);
+    }
+
+    /**
+     * Lee todos los ficheros del directorio
+     */
+    private static List<byte[]> readCorpus(File dir) throws IOException {
+        List<byte[]> feeds = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile()) {
+                    feeds.add(Files.readAllBytes(file.toPath()));
+                }
+            }
+        }
+        return feeds;
+    }
+
+    /**
+     * Elige los fragmentos que más se repiten entre RSS distintos. Cada fragmento va de un '<' al
+     * siguiente (una etiqueta con su contenido, o una etiqueta de cierre con el salto de línea), que
+     * es justo lo que tienen en común todos los RSS. Se puntúan por número de RSS en que aparecen
+     * por longitud, y se colocan de menos a más valiosos: deflate codifica más barato lo que está más
+     * cerca del final del diccionario.
+     */
+    private static byte[] buildDictionary(List<byte[]> feeds, int maxSize) {
+        final Map<String, Integer> documents = new HashMap<>();
+        for (byte[] feed : feeds) {
+            Set<String> seen = new HashSet<>();
+            String text = new String(feed, UTF8);
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('<', start + 1);
+                if (end < 0) {
+                    end = text.length();
+                }
+                seen.add(text.substring(start, end));
+                start = end;
+            }
+            for (String fragment : seen) {
+                Integer count = documents.get(fragment);
+                documents.put(fragment, count == null ? 1 : count + 1);
+            }
+        }
+        int minDocuments = Math.max(MIN_DOCUMENTS, feeds.size() / MIN_SHARE);
+        List<String> fragments = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : documents.entrySet()) {
+            if (entry.getValue() >= minDocuments && entry.getKey().length() >= 4) {
+                fragments.add(entry.getKey());
+            }
+        }
+        final Comparator<String> byScore = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long scoreA = (long) documents.get(a) * a.length();
+                long scoreB = (long) documents.get(b) * b.length();
+                return scoreA != scoreB ? Long.compare(scoreB, scoreA) : a.compareTo(b);
+            }
+        };
+        Collections.sort(fragments, byScore);
+        List<String> chosen = new ArrayList<>();
+        int size = 0;
+        for (String fragment : fragments) {
+            int length = fragment.getBytes(UTF8).length;
+            if (size + length <= maxSize) {
+                chosen.add(fragment);
+                size += length;
+            }
+        }
+        Collections.reverse(chosen);
+        StringBuilder dictionary = new StringBuilder();
+        for (String fragment : chosen) {
+            dictionary.append(fragment);
+        }
+        return dictionary.toString().getBytes(UTF8);
+    }
+
+    /**
+     * Escribe FeedDictionary.java con el diccionario como una constante de texto
+     */
+    private static void writeSource(byte[] dictionary, int feedCount) throws IOException {
+        String text = new String(dictionary, UTF8);
+        Writer out = new OutputStreamWriter(new FileOutputStream(OUTPUT), UTF8);
+        int line = 0;
+        try {
+            out.write("package org.otempo.rss;\n\n");
+            out.write("/**\n");
+            out.write(" * Diccionario para comprimir las copias de los RSS (ver DictionaryCodec).\n");
+            out.write(" * Generado por tools/FeedDictionaryBuilder.java a partir de " + feedCount + " RSS: no editar a mano.\n");
+            out.write(" */\n");
+            out.write("final class FeedDictionary {\n");
+            out.write("    static final String TEXT = \"\"");
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"': literal.append("\\\""); break;
+                    case '\\': literal.append("\\\\"); break;
+                    case '\n': literal.append("\\n"); break;
+                    case '\r': literal.append("\\r"); break;
+                    case '\t': literal.append("\\t"); break;
+                    default:
+                        if (c < 0x20 || c > 0x7e) {
+                            literal.append(String.format(Locale.US, "\\u%04x", (int) c));
+                        } else {
+                            literal.append(c);
+                        }
+                }
+                if (literal.length() >= 90 || c == '\n' || i == text.length() - 1) {
+                    out.write("\n            + \"" + literal + "\"");
+                    literal.setLength(0);
+                    line++;
+                }
+            }
+            out.write(";\n\n");
+            out.write("    private FeedDictionary() {\n");
+            out.write("    }\n");
+            out.write("}\n");
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + OUTPUT + " (" + dictionary.length + " bytes, " + line + " lines)");
+    }
+
+    /**
+     * Informa del tamaño comprimido con gzip y con el diccionario, y de la velocidad de descompresión
+     */
+    private static void report(List<byte[]> feeds, byte[] dictionary) throws IOException, DataFormatException {
+        long raw = 0;
+        long gzip = 0;
+        long withDictionary = 0;
+        List<byte[]> compressed = new ArrayList<>();
+        for (byte[] feed : feeds) {
+            raw += feed.length;
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(gzipped);
+            out.write(feed);
+            out.close();
+            gzip += gzipped.size();
+            byte[] deflated = deflate(feed, dictionary);
+            withDictionary += deflated.length;
+            compressed.add(deflated);
+        }
+        System.out.println(String.format(Locale.US, "%d feeds, %d bytes raw", feeds.size(), raw));
+        System.out.println(String.format(Locale.US, "gzip:       %8d bytes (%.1fx)", gzip, (double) raw / gzip));
+        System.out.println(String.format(Locale.US, "dictionary: %8d bytes (%.1fx), %.1f bytes/feed",
+                withDictionary, (double) raw / withDictionary, (double) withDictionary / feeds.size()));
+        // Descompresión, como al leer las copias
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.nanoTime();
+        long decoded = 0;
+        for (int round = 0; round < DECODE_ROUNDS; round++) {
+            for (byte[] deflated : compressed) {
+                decoded += inflate(deflated, dictionary, buffer);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US, "decode:     %.1f MB/s (%.1f us/feed)",
+                decoded / seconds / (1024 * 1024), seconds * 1e6 / (DECODE_ROUNDS * compressed.size())));
+    }
+
+    private static byte[] deflate(byte[] feed, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setDictionary(dictionary);
+        deflater.setInput(feed);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static int inflate(byte[] deflated, byte[] dictionary, byte[] buffer) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(deflated);
+        int total = 0;
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buffer);
+            if (n == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(dictionary);
+            }
+            total += n;
+        }
+        inflater.end();
+        return total;
+    }
+}